@@ -0,0 +1,89 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Measures the throughput of the shared DNSCache when several resolver threads use it at once:
+ * each thread looks up random names among a fixed set of cached names, and replaces the record
+ * of one of them with a fresh one in 10% of its operations, as a resolver caching the response
+ * of a server would.
+ *
+ * Usage: CacheContentionBench [seconds per run] [thread counts...]
+ * The defaults are 5 seconds, and runs with 1, 2, 4 and 8 threads.
+ */
+public class CacheContentionBench {
+
+    private static final int NAMES = 10_000;
+    private static final int WRITE_PERCENT = 10;
+    private static final long TTL = 3600;
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++)
+            threadCounts.add(Integer.parseInt(args[i]));
+        if (threadCounts.isEmpty())
+            threadCounts = List.of(1, 2, 4, 8);
+
+        DNSCache cache = DNSCache.getInstance();
+        DNSNode[] nodes = new DNSNode[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            nodes[i] = new DNSNode("host" + i + ".bench.test", RecordType.A);
+            cache.addResult(new ResourceRecord(nodes[i], TTL, address(i)));
+        }
+
+        System.out.printf("%d names, %d%% writes, %d available processors\n", NAMES, WRITE_PERCENT,
+                Runtime.getRuntime().availableProcessors());
+        run(cache, nodes, threadCounts.get(0), 1); // Warm-up
+        for (int threads : threadCounts) {
+            long operations = run(cache, nodes, threads, seconds);
+            System.out.printf("%2d threads: %6.2f Mops/s\n", threads, operations / (seconds * 1e6));
+        }
+        System.exit(0);
+    }
+
+    /** Runs the workload for a given time and returns the number of operations completed. */
+    private static long run(DNSCache cache, DNSNode[] nodes, int threads, long seconds)
+            throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] end = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end[0]) {
+                    for (int i = 0; i < 1000; i++) {
+                        int n = random.nextInt(NAMES);
+                        if (random.nextInt(100) < WRITE_PERCENT)
+                            cache.addResult(new ResourceRecord(nodes[n], TTL, address(n)));
+                        else if (cache.getCachedResults(nodes[n]).isEmpty())
+                            throw new IllegalStateException("Missing " + nodes[n]);
+                    }
+                    count += 1000;
+                }
+                operations.add(count);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        end[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        return operations.sum();
+    }
+
+    private static byte[] address(int n) {
+        return new byte[] {10, (byte) (n >> 16), (byte) (n >> 8), (byte) n};
+    }
+}
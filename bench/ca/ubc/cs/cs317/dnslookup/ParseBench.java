@@ -0,0 +1,72 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Measures the time and memory DNSResponseParser takes to parse a typical referral: the 13
+ * NS records of the com zone in the authority section, with an A record for each of them in
+ * the additional section, as a root server returns them. The response is encoded once by
+ * ResponseEncoder, with name compression, and parsed over and over from the same buffer.
+ *
+ * Usage: ParseBench [iterations]
+ * The default is 200000 iterations, after as many for warm-up.
+ */
+public class ParseBench {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        ByteBuffer response = referral();
+        System.out.printf("Referral of %d bytes\n", response.remaining());
+
+        run(response, iterations); // Warm-up
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long records = run(response, iterations);
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("%d records per message\n", records / iterations);
+        System.out.printf("%.2f us/msg, %.2f KB allocated/msg\n", elapsed / 1e3 / iterations,
+                allocated / 1024.0 / iterations);
+    }
+
+    /** Parses a response a number of times, and returns the number of records found. */
+    private static long run(ByteBuffer response, int iterations) throws IOException {
+        long records = 0;
+        for (int i = 0; i < iterations; i++) {
+            DNSResponseParser parser = new DNSResponseParser(response);
+            parser.parseQuestion();
+            parser.parse();
+            records += parser.getAnswers().size() + parser.getAuthorities().size() + parser.getAdditionals().size();
+        }
+        return records;
+    }
+
+    /** Builds the referral from a root server for www.example.com. */
+    private static ByteBuffer referral() {
+        DNSNode question = new DNSNode("www.example.com", RecordType.A);
+        ByteBuffer query = ByteBuffer.allocate(QueryEncoder.MAX_QUERY_LENGTH);
+        int questionEnd = QueryEncoder.encode(query, 0x1234, 0x0000, question);
+
+        DNSNode zone = new DNSNode("com", RecordType.NS);
+        List<ResourceRecord> nameServers = new ArrayList<>();
+        List<ResourceRecord> glue = new ArrayList<>();
+        for (char letter = 'a'; letter <= 'm'; letter++) {
+            String nameServer = letter + ".gtld-servers.net";
+            nameServers.add(new ResourceRecord(zone, 172800, nameServer));
+            glue.add(new ResourceRecord(new DNSNode(nameServer, RecordType.A), 172800,
+                    new byte[] {(byte) 192, (byte) (letter - 'a' + 5), 6, 30}));
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(4096);
+        new ResponseEncoder().encode(response, query, questionEnd, question.getName(), 0,
+                ResponseEncoder.RCODE_NOERROR, Collections.emptyList(), nameServers, glue, response.capacity(), 0);
+        return response;
+    }
+}
@@ -0,0 +1,77 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/** Measures the memory allocated to send a query: encoding it by QueryEncoder into a buffer of
+ * the DatagramBufferPool, and then also sending it over a loopback UDP channel and receiving it
+ * into another pooled buffer, as UdpTransport does with a query and its response. The host
+ * names cycle through a small set, so their wire form is cached by the encoder, as for the
+ * names of a busy resolver.
+ *
+ * Usage: QueryAllocationBench [iterations]
+ * The default is 200000 queries, after as many for warm-up.
+ */
+public class QueryAllocationBench {
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        DNSNode[] nodes = new DNSNode[16];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = new DNSNode("host" + i + ".example.com", RecordType.A);
+        DatagramBufferPool pool = DatagramBufferPool.getInstance();
+
+        try (DatagramChannel server = DatagramChannel.open();
+             DatagramChannel client = DatagramChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client.connect(server.getLocalAddress());
+
+            encode(pool, nodes, iterations); // Warm-up
+            long allocated = allocatedBytes();
+            encode(pool, nodes, iterations);
+            System.out.printf("encode into pooled buffer:            %4d B/query\n",
+                    (allocatedBytes() - allocated) / iterations);
+
+            sendAndReceive(pool, nodes, client, server, iterations); // Warm-up
+            allocated = allocatedBytes();
+            sendAndReceive(pool, nodes, client, server, iterations);
+            System.out.printf("encode, send and receive on loopback: %4d B/query\n",
+                    (allocatedBytes() - allocated) / iterations);
+        }
+    }
+
+    private static void encode(DatagramBufferPool pool, DNSNode[] nodes, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            DatagramBufferPool.Buffer request = pool.acquire();
+            QueryEncoder.encode(request.getByteBuffer(), i & 0xFFFF, 0, nodes[i % nodes.length]);
+            pool.release(request);
+        }
+    }
+
+    private static void sendAndReceive(DatagramBufferPool pool, DNSNode[] nodes, DatagramChannel client,
+                                       DatagramChannel server, int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            DatagramBufferPool.Buffer request = pool.acquire();
+            QueryEncoder.encode(request.getByteBuffer(), i & 0xFFFF, 0, nodes[i % nodes.length]);
+            client.write(request.getByteBuffer());
+            pool.release(request);
+
+            DatagramBufferPool.Buffer received = pool.acquire();
+            received.getByteBuffer().clear();
+            server.receive(received.getByteBuffer());
+            pool.release(received);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Measures how long CacheSnapshot takes to load a large snapshot into an empty cache, as at
+ * the start of the service. The snapshot is written by a first run, and loaded by a second one,
+ * in a new JVM so the cache is empty; half of its records are A records, the other half CNAME
+ * records, each for a name of its own.
+ *
+ * Usage: SnapshotBench save [records] [file]
+ *        SnapshotBench load [file]
+ * The defaults are 1000000 records, and the file dnslookup-bench.snapshot in the temporary
+ * directory. With -Ddnslookup.cache.offHeap=true, records are loaded into the off-heap store.
+ */
+public class SnapshotBench {
+
+    private static final long TTL = 3600;
+    private static final long MAX_RECORDS = 2_000_000;
+    private static final long MAX_BYTES = 1L << 30;
+
+    public static void main(String[] args) throws IOException {
+        boolean save = args.length > 0 && args[0].equals("save");
+        int records = save && args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        String name = args.length > (save ? 2 : 1) ? args[save ? 2 : 1] : null;
+        Path file = name != null ? Paths.get(name)
+                : Paths.get(System.getProperty("java.io.tmpdir"), "dnslookup-bench.snapshot");
+
+        DNSCache cache = DNSCache.getInstance();
+        cache.setMaximumSize(MAX_RECORDS, MAX_BYTES);
+        if (Boolean.getBoolean("dnslookup.cache.offHeap"))
+            cache.useOffHeapStore();
+
+        if (save) {
+            for (int i = 0; i < records / 2; i++) {
+                DNSNode address = new DNSNode("host" + i + ".bench.test", RecordType.A);
+                cache.addResult(new ResourceRecord(address, TTL,
+                        new byte[] {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}));
+                DNSNode alias = new DNSNode("alias" + i + ".bench.test", RecordType.CNAME);
+                cache.addResult(new ResourceRecord(alias, TTL, address.getHostName()));
+            }
+            long start = System.nanoTime();
+            int saved = CacheSnapshot.save(cache, file);
+            System.out.printf("Saved %d records to %s in %d ms\n", saved, file, (System.nanoTime() - start) / 1_000_000);
+        } else {
+            long start = System.nanoTime();
+            int loaded = CacheSnapshot.load(cache, file);
+            System.out.printf("Loaded %d records%s in %d ms\n", loaded, cache.isOffHeap() ? " off-heap" : "",
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,167 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Resolves a list of host names read from a file or the standard input, and writes the results
+ * as each lookup completes. Each line holds a host name, optionally followed by a record type
+ * (A by default); empty lines and anything after a '#' are ignored.
+ *
+ * Lookups are issued through Resolver.resolveAsync, with at most a fixed number of them in
+ * progress at the same time, so no thread is used per lookup. All lookups share the DNS cache:
+ * names repeated in the batch are answered from the cache, and a name already being resolved
+ * shares the result of that resolution instead of querying the servers again.
+ *
+ * Once all lookups are done, a summary with the throughput, the median and 99th percentile
+ * latencies, and the number of failures and cache hits is written after the results.
+ */
+public class BatchResolver {
+
+    public static final int DEFAULT_CONCURRENCY = 256;
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private final Resolver resolver;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final int concurrency;
+    private final long timeoutMillis;
+
+    private long[] latencies = new long[1024];
+    private int completed = 0;
+    private int failures = 0;
+    private int cacheHits = 0;
+
+    /** Creates a batch using an existing resolver.
+     *
+     * @param resolver      Resolver used for each lookup.
+     * @param concurrency   Maximum number of lookups in progress at the same time.
+     * @param timeoutMillis Deadline of each lookup, in milliseconds, or 0 for none.
+     */
+    public BatchResolver(Resolver resolver, int concurrency, long timeoutMillis) {
+        this.resolver = resolver;
+        this.concurrency = Math.max(1, concurrency);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Resolves every name read from the input and writes the results and the summary to the
+     * output. Returns once all lookups are done.
+     *
+     * @param in  Source of the names to resolve.
+     * @param out Destination of the results, flushed before returning.
+     * @throws IOException if the input could not be read or the output could not be written.
+     */
+    public void run(BufferedReader in, Writer out) throws IOException {
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long coalesced = resolver.getCoalescedLookupCount();
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+
+            String[] fields = line.split("\\s+");
+            RecordType type = RecordType.A;
+            if (fields.length > 2) {
+                System.err.println("Line " + lineNumber + ": invalid format, expected hostName [type]");
+                continue;
+            }
+            if (fields.length == 2)
+                try {
+                    type = RecordType.valueOf(fields[1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Line " + lineNumber + ": invalid query type " + fields[1]);
+                    continue;
+                }
+
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            lookup(new DNSNode(fields[0], type), out).whenComplete((done, error) -> permits.release());
+        }
+
+        permits.acquireUninterruptibly(concurrency);
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            writeSummary(out, elapsed, resolver.getCoalescedLookupCount() - coalesced);
+        }
+        out.flush();
+    }
+
+    /** Starts the lookup of a node, from the cache if possible, and writes its results once they
+     * are available.
+     */
+    private CompletableFuture<Set<ResourceRecord>> lookup(DNSNode node, Writer out) {
+        long start = System.nanoTime();
+        CompletableFuture<Set<ResourceRecord>> results;
+        Set<ResourceRecord> cachedRecords = cache.getCachedResults(node);
+        boolean cached = !cachedRecords.isEmpty() || cache.hasNegativeResult(node);
+        if (cached)
+            results = CompletableFuture.completedFuture(cachedRecords);
+        else
+            results = timeoutMillis > 0
+                    ? resolver.resolveAsync(node, timeoutMillis, TimeUnit.MILLISECONDS)
+                    : resolver.resolveAsync(node);
+
+        return results.whenComplete((records, error) -> {
+            long latency = System.nanoTime() - start;
+            synchronized (this) {
+                record(node, error == null ? records : Collections.emptySet(), latency, cached, out);
+            }
+        });
+    }
+
+    /** Writes the results of one lookup and updates the statistics. Called while holding the
+     * lock on this batch.
+     */
+    private void record(DNSNode node, Set<ResourceRecord> results, long latency, boolean cached, Writer out) {
+        if (completed == latencies.length)
+            latencies = Arrays.copyOf(latencies, completed * 2);
+        latencies[completed++] = latency;
+        if (cached)
+            cacheHits++;
+        if (results.isEmpty())
+            failures++;
+
+        try {
+            if (results.isEmpty())
+                out.write(String.format("%-30s %-5s %-8d %s\n", node.getHostName(),
+                        node.getType(), -1, "0.0.0.0"));
+            for (ResourceRecord record : results)
+                out.write(String.format("%-30s %-5s %-8d %s\n", node.getHostName(),
+                        node.getType(), record.getTTL(), record.getTextResult()));
+        } catch (IOException e) {
+            System.err.println("Could not write results (" + e.getMessage() + ").");
+        }
+    }
+
+    private void writeSummary(Writer out, long elapsedNanos, long shared) throws IOException {
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        out.write(String.format("%-20s %d in %.3f s (%.1f queries/s)\n", "Lookups:",
+                completed, seconds, seconds == 0 ? 0.0 : completed / seconds));
+        out.write(String.format("%-20s p50 %.1f ms, p99 %.1f ms\n", "Latency:",
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6));
+        out.write(String.format("%-20s %d failed, %d cache hits, %d shared\n", "Results:",
+                failures, cacheHits, shared));
+    }
+
+    /** Returns the value at a given fraction of a sorted array (nearest-rank method). */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,178 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Saves the contents of the DNS cache to a file, and loads them back, so that a restarted
+ * service does not need to resolve every name again from the root server.
+ *
+ * The snapshot uses a compact binary format (all numbers in network byte order):
+ * <pre>
+ *   header: magic (4 bytes, "DNSC"), version (2 bytes), number of nodes (4 bytes)
+ *   node:   host name length (2 bytes), host name (UTF-8), record type code (2 bytes),
+ *           number of records (4 bytes), followed by each record
+ *   record: absolute expiration time in ms since the epoch (8 bytes), original TTL (4 bytes),
+ *           data kind (1 byte), followed by the data: 4 address bytes for IPv4, 16 address
+ *           bytes for IPv6, or text length (2 bytes) and text (UTF-8) for other records
+ * </pre>
+ * Snapshots are written to a temporary file that replaces the previous snapshot once complete,
+ * so a crash while saving never leaves a truncated snapshot behind. They are read through a
+ * memory-mapped buffer, without any per-record I/O call, and records that have expired since
+ * the snapshot was taken are skipped. Records are added to the cache a few thousand nodes at a
+ * time, so the eviction policy of the cache is updated once per batch rather than per node.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343;
+    private static final short VERSION = 1;
+
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IPV4 = 4;
+    private static final byte KIND_IPV6 = 6;
+
+    private static final int BATCH_NODES = 4096;
+
+    /** Writes all records currently in the cache to a snapshot file.
+     *
+     * @param cache Cache whose records are saved.
+     * @param file  Path of the snapshot file, replaced if it already exists.
+     * @return The number of records saved.
+     * @throws IOException if the snapshot could not be written.
+     */
+    public static int save(DNSCache cache, Path file) throws IOException {
+        List<DNSNode> nodes = new ArrayList<>();
+        List<Set<ResourceRecord>> recordSets = new ArrayList<>();
+        cache.forEachNode((node, records) -> {
+            nodes.add(node);
+            recordSets.add(records);
+        });
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp, StandardOpenOption.TRUNCATE_EXISTING), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(nodes.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                DNSNode node = nodes.get(i);
+                Set<ResourceRecord> records = recordSets.get(i);
+                writeString(out, node.getHostName());
+                out.writeShort(node.getType().getCode());
+                out.writeInt(records.size());
+                for (ResourceRecord record : records) {
+                    out.writeLong(record.getExpirationTime());
+                    out.writeInt((int) record.getOriginalTTL());
+                    byte[] bytes = record.getAddress();
+                    if (bytes != null) {
+                        out.writeByte(bytes.length == 4 ? KIND_IPV4 : KIND_IPV6);
+                        out.write(bytes);
+                    } else {
+                        out.writeByte(KIND_TEXT);
+                        writeString(out, record.getTextResult());
+                    }
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /** Loads the records of a snapshot file into the cache. Records that already expired are
+     * ignored.
+     *
+     * @param cache Cache where records are added.
+     * @param file  Path of the snapshot file.
+     * @return The number of records added to the cache.
+     * @throws IOException if the snapshot could not be read or is not a valid snapshot.
+     */
+    public static int load(DNSCache cache, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return load(cache, buffer);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid cache snapshot " + file, e);
+            }
+        }
+    }
+
+    private static int load(DNSCache cache, ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+            throw new IOException("Not a cache snapshot, or unsupported version");
+
+        long now = System.currentTimeMillis();
+        byte[] scratch = new byte[1 << 16];
+        Map<DNSNode, List<ResourceRecord>> batch = new HashMap<>(BATCH_NODES * 2);
+        int loaded = 0;
+
+        int nodeCount = buffer.getInt();
+        for (int n = 0; n < nodeCount; n++) {
+            String hostName = readString(buffer, scratch);
+            DNSNode node = new DNSNode(hostName, RecordType.getByCode(buffer.getShort() & 0xFFFF));
+            int recordCount = buffer.getInt();
+
+            List<ResourceRecord> records = null;
+            for (int r = 0; r < recordCount; r++) {
+                long expirationTime = buffer.getLong();
+                long originalTTL = buffer.getInt() & 0xFFFFFFFFL;
+                byte kind = buffer.get();
+                ResourceRecord record;
+                if (kind == KIND_TEXT) {
+                    String text = readString(buffer, scratch);
+                    record = new ResourceRecord(node, expirationTime, originalTTL, text, (byte[]) null);
+                } else if (kind == KIND_IPV4 || kind == KIND_IPV6) {
+                    byte[] address = new byte[kind == KIND_IPV4 ? 4 : 16];
+                    buffer.get(address);
+                    record = new ResourceRecord(node, expirationTime, originalTTL, null, address);
+                } else {
+                    throw new IOException("Corrupt snapshot: unknown record data kind " + kind);
+                }
+                if (expirationTime > now) {
+                    if (records == null)
+                        records = batch.computeIfAbsent(node, key -> new ArrayList<>(recordCount));
+                    records.add(record);
+                    loaded++;
+                }
+            }
+            if (batch.size() >= BATCH_NODES) {
+                cache.addResults(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            cache.addResults(batch);
+        return loaded;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
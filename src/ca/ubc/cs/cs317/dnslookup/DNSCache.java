@@ -1,18 +1,142 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server, and are deleted as soon as they expire.
+ *
+ * The cache may be used by several resolver threads at the same time. Nodes are kept in a
+ * concurrent hash map, and the records of each node are kept in an immutable map that is
+ * replaced (copy-on-write) whenever a record is added or removed. Lookups are therefore
+ * lock-free and never observe a partially updated set, while updates to different nodes
+ * proceed in parallel and updates to the same node are serialized by the map itself.
+ *
+ * Each cached record has a timeout in a timing wheel set to its expiration time. When the
+ * timeout fires the record is removed, whether or not anyone asks for it again, so lookups
+ * never need to scan for expired records.
+ *
+ * The size of the cache is limited both by number of records and by their estimated size in
+ * bytes. When a limit is exceeded, entire queries are evicted as decided by a W-TinyLFU policy
+ * (see TinyLfuPolicy), so that names used often are kept in preference to names used once.
+ * The policy is shared by all threads and protected by a lock. Lookups only update it if the
+ * lock is free, so a busy policy never slows down reads; the few lookups that are not recorded
+ * only make its frequency estimates slightly less precise.
+ *
+ * The cache also keeps negative results (RFC 2308): queries for which a server answered that
+ * the name does not exist (NXDOMAIN) or has no record of the requested type (NODATA). These are
+ * kept for the negative TTL provided by the server, so repeated queries for missing names are
+ * answered without contacting any server. Each negative result remembers which of the two
+ * answers it was and the SOA record that came with it, so it can be passed on as it was received.
+ *
+ * Finally, the cache counts how many times each query is found. When a query that was found
+ * often enough is looked up within the last part of the TTL of one of its records, a prefetch
+ * handler is asked to refresh it in the background (refresh-ahead), so popular names are
+ * replaced before they expire instead of being resolved again by the next client that needs
+ * them.
+ *
+ * The cache keeps an index of the zone cuts it knows about (the names with cached NS records,
+ * see ZoneCutIndex), so a resolver can find the closest name servers of a name it has to
+ * resolve, and start there instead of at the root server.
+ *
+ * If a stale window is set (RFC 8767, serve-stale), expired records are not discarded right
+ * away: they are moved to a separate stale area for the duration of the window, and may still
+ * be returned by getStaleResults when the servers that would provide fresh records cannot be
+ * reached.
+ *
+ * Instead of its maps, the cache can keep its records in an off-heap store (see
+ * OffHeapRecordStore), selected at startup with useOffHeapStore, so that the number of records
+ * it holds is limited by its memory budget rather than by the size of the heap. Records in the
+ * store expire without timeouts, are evicted by their expiration time rather than by the W-TinyLFU
+ * policy, and are not kept as stale results. The other features work the same way with either
+ * store.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_TICK_MILLIS = 100;
+
+    public static final long DEFAULT_MAX_RECORDS = 100_000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_PREFETCH_MIN_HITS = 5;
+    public static final double DEFAULT_PREFETCH_TTL_FRACTION = 0.1;
+    public static final long STALE_TTL = 30;
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    /** A negative result: whether the name does not exist (NXDOMAIN) or only has no record of
+     * the type queried (NODATA), and the SOA record of the zone that said so, if any.
+     */
+    public static final class NegativeResult {
+
+        private final boolean nameError;
+        private final ResourceRecord soa;
+        private final long expirationTime;
+        private TimerWheel.Timeout timeout;
+
+        private NegativeResult(boolean nameError, ResourceRecord soa, long expirationTime) {
+            this.nameError = nameError;
+            this.soa = soa;
+            this.expirationTime = expirationTime;
+        }
+
+        /** Returns true for NXDOMAIN, false for NODATA. */
+        public boolean isNameError() {
+            return nameError;
+        }
+
+        /** Returns the time left before the negative result expires, in seconds. */
+        public long getTTL() {
+            return Math.max(0, (expirationTime - System.currentTimeMillis()) / 1000);
+        }
+
+        /** Returns a copy of the SOA record with the remaining TTL of the negative result, as
+         * RFC 2308 requires when a negative answer is given from a cache, or null if the answer
+         * came without one.
+         */
+        public ResourceRecord getSOA() {
+            return soa == null ? null : soa.copyFor(soa.getNode(), getTTL());
+        }
+    }
+
+    private ConcurrentMap<DNSNode, Map<ResourceRecord, TimerWheel.Timeout>> cachedResults = new ConcurrentHashMap<>();
+
+    private ConcurrentMap<DNSNode, Map<ResourceRecord, TimerWheel.Timeout>> staleResults = new ConcurrentHashMap<>();
+    private volatile long staleWindowMillis = 0;
+
+    private ConcurrentMap<DNSNode, NegativeResult> negativeResults = new ConcurrentHashMap<>();
+
+    private volatile OffHeapRecordStore offHeapStore;
+
+    private ZoneCutIndex zoneCuts = new ZoneCutIndex();
+
+    private TimerWheel expiryWheel = new TimerWheel("dns-cache-expiry", EXPIRY_TICK_MILLIS);
+
+    private ReentrantLock policyLock = new ReentrantLock();
+    private TinyLfuPolicy policy = new TinyLfuPolicy(DEFAULT_MAX_RECORDS, DEFAULT_MAX_BYTES, this::evict);
+    private long maxRecords = DEFAULT_MAX_RECORDS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    private LongAdder hitCount = new LongAdder();
+    private LongAdder missCount = new LongAdder();
+    private LongAdder evictionCount = new LongAdder();
+    private LongAdder expirationCount = new LongAdder();
+    private LongAdder negativeHitCount = new LongAdder();
+
+    private ConcurrentMap<DNSNode, LongAdder> nodeHits = new ConcurrentHashMap<>();
+    private Set<DNSNode> prefetchPending = ConcurrentHashMap.newKeySet();
+    private Set<DNSNode> prefetched = ConcurrentHashMap.newKeySet();
+    private volatile Consumer<DNSNode> prefetchHandler;
+    private volatile int prefetchMinHits = DEFAULT_PREFETCH_MIN_HITS;
+    private volatile double prefetchTTLFraction = DEFAULT_PREFETCH_TTL_FRACTION;
+    private LongAdder prefetchIssuedCount = new LongAdder();
+    private LongAdder prefetchUsedCount = new LongAdder();
+    private LongAdder staleHitCount = new LongAdder();
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -23,21 +147,161 @@ public class DNSCache {
         return instance;
     }
 
+    /** Changes the size limits of the cache. Queries already cached are evicted immediately if
+     * they do not fit within the new limits. The off-heap store is only limited by its memory
+     * budget, which is set to maxBytes, and frees memory as blocks are reclaimed.
+     *
+     * @param maxRecords Maximum number of records kept in the cache.
+     * @param maxBytes   Maximum estimated size, in bytes, of the records kept in the cache.
+     */
+    public void setMaximumSize(long maxRecords, long maxBytes) {
+        policyLock.lock();
+        try {
+            this.maxRecords = maxRecords;
+            this.maxBytes = maxBytes;
+            if (offHeapStore != null)
+                offHeapStore.setMaxBytes(maxBytes);
+            policy = new TinyLfuPolicy(maxRecords, maxBytes, this::evict);
+            for (DNSNode node : cachedResults.keySet())
+                updatePolicy(node);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /** Moves the records of the cache to an off-heap store, with a memory budget of maxBytes
+     * (see setMaximumSize). Meant to be called once at startup, before anything is cached;
+     * records already in the cache are moved to the store.
+     */
+    public synchronized void useOffHeapStore() {
+        if (offHeapStore != null) return;
+        OffHeapRecordStore store = new OffHeapRecordStore(maxBytes, this::forgetNode);
+        forEachNode((node, results) -> store.put(node, new ArrayList<>(results)));
+        offHeapStore = store;
+        policyLock.lock();
+        try {
+            for (Map<ResourceRecord, TimerWheel.Timeout> results : cachedResults.values())
+                results.values().forEach(TimerWheel.Timeout::cancel);
+            cachedResults.clear();
+            policy = new TinyLfuPolicy(maxRecords, maxBytes, this::evict);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /** Returns true if the records are kept in an off-heap store. */
+    public boolean isOffHeap() {
+        return offHeapStore != null;
+    }
+
+    /** Sets the action used to refresh popular queries before they expire. The handler is
+     * called from the thread performing the lookup, and should only schedule the refresh (e.g.,
+     * in a separate thread) and return immediately. The refresh is considered complete when a
+     * record is added for the query.
+     *
+     * @param handler  Action called with the query to be refreshed, or null to disable
+     *                 prefetching.
+     * @param minHits  Number of times a query must be found in the cache before it is
+     *                 prefetched.
+     * @param fraction Fraction (between 0 and 1) of the original TTL of a record under which
+     *                 the remaining TTL must fall for its query to be prefetched.
+     */
+    public void setPrefetchHandler(Consumer<DNSNode> handler, int minHits, double fraction) {
+        this.prefetchMinHits = minHits;
+        this.prefetchTTLFraction = fraction;
+        this.prefetchHandler = handler;
+    }
+
+    /** Sets how long expired records are kept to be served as stale results. Records that
+     * already expired are not affected.
+     *
+     * @param seconds Duration of the stale window, in seconds, or 0 to discard records as soon
+     *                as they expire.
+     */
+    public void setStaleWindow(long seconds) {
+        this.staleWindowMillis = seconds * 1000;
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. This method does not perform
+     * the query itself, it only returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        Set<ResourceRecord> results = lookup(node);
+        if (results == null) {
+            missCount.increment();
             return Collections.emptySet();
+        }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        hitCount.increment();
+        if (offHeapStore == null && policyLock.tryLock()) {
+            try {
+                policy.onRead(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        if (!prefetched.isEmpty() && prefetched.remove(node))
+            prefetchUsedCount.increment();
+        if (prefetchHandler != null)
+            checkPrefetch(node, results);
+        return results;
+    }
+
+    /** Returns the records cached for a query, like getCachedResults, but without counting a
+     * hit or a miss, updating the eviction policy or triggering a prefetch, for a caller that
+     * only reads back records it has just cached.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        Set<ResourceRecord> results = lookup(node);
+        return results == null ? Collections.emptySet() : results;
+    }
+
+    /** Returns the records of a query from the store in use, or null if it has none. */
+    private Set<ResourceRecord> lookup(DNSNode node) {
+        OffHeapRecordStore store = offHeapStore;
+        if (store != null)
+            return store.get(node);
+        Map<ResourceRecord, TimerWheel.Timeout> results = cachedResults.get(node);
+        return results == null ? null : results.keySet();
+    }
+
+    /** Counts a hit on a query and, if it is popular and one of its records is close to its
+     * expiration, asks the prefetch handler to refresh it. Only one refresh is requested at a
+     * time for each query.
+     */
+    private void checkPrefetch(DNSNode node, Set<ResourceRecord> records) {
+        LongAdder hits = nodeHits.computeIfAbsent(node, key -> new LongAdder());
+        hits.increment();
+        if (hits.sum() < prefetchMinHits) return;
+
+        long now = System.currentTimeMillis();
+        for (ResourceRecord record : records) {
+            long remaining = record.getExpirationTime() - now;
+            if (remaining < record.getOriginalTTL() * 1000 * prefetchTTLFraction) {
+                Consumer<DNSNode> handler = prefetchHandler;
+                if (handler != null && prefetchPending.add(node)) {
+                    prefetchIssuedCount.increment();
+                    handler.accept(node);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Marks the refresh of a query requested from the prefetch handler as over, whether it
+     * succeeded or not, so that another one can be requested.
+     *
+     * @param node Query that was refreshed.
+     */
+    public void prefetchDone(DNSNode node) {
+        prefetchPending.remove(node);
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -51,42 +315,495 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        addResults(record.getNode(), Collections.singletonList(record));
+    }
+
+    /** Adds several resource records of the same query to the DNS cache, as if addResult had
+     * been called for each of them, but updating the cache only once. Records must be valid.
+     *
+     * @param node    Query (host name and record type) of all the records.
+     * @param records Resource records to be added.
+     */
+    void addResults(DNSNode node, List<ResourceRecord> records) {
+
+        OffHeapRecordStore store = offHeapStore;
+        if (store != null) {
+            store.put(node, records);
+            if (node.getType() == RecordType.NS)
+                zoneCuts.add(node);
+        } else {
+            addToMap(node, records);
+            updatePolicy(node);
+            indexZoneCut(node);
         }
+        resultsAdded(node);
+    }
+
+    /** Adds the resource records of many queries to the DNS cache, as if addResults had been
+     * called for each query, but updating the eviction policy for all of them under a single
+     * acquisition of its lock, such as when a cache snapshot is loaded. Records must be valid.
+     *
+     * @param results Resource records to be added, by query.
+     */
+    void addResults(Map<DNSNode, List<ResourceRecord>> results) {
+
+        if (offHeapStore != null) {
+            results.forEach(this::addResults);
+            return;
+        }
+
+        results.forEach(this::addToMap);
+        policyLock.lock();
+        try {
+            for (DNSNode node : results.keySet())
+                writePolicy(node);
+        } finally {
+            policyLock.unlock();
+        }
+        for (DNSNode node : results.keySet()) {
+            indexZoneCut(node);
+            resultsAdded(node);
+        }
+    }
+
+    /** Ends a pending prefetch, and drops the negative and stale results of a query whose
+     * records were just added.
+     */
+    private void resultsAdded(DNSNode node) {
+        if (!prefetchPending.isEmpty() && prefetchPending.remove(node)) {
+            prefetched.add(node);
+            nodeHits.remove(node);
+        }
+
+        NegativeResult negative = negativeResults.remove(node);
+        if (negative != null)
+            negative.timeout.cancel();
+
+        if (!staleResults.isEmpty()) {
+            Map<ResourceRecord, TimerWheel.Timeout> stale = staleResults.remove(node);
+            if (stale != null)
+                stale.values().forEach(TimerWheel.Timeout::cancel);
+        }
+    }
+
+    /** Adds records to the heap map, each with its expiry timeout. The policy is updated by
+     * the caller.
+     */
+    private void addToMap(DNSNode node, List<ResourceRecord> records) {
+        cachedResults.compute(node, (key, results) -> {
+            if (results == null && records.size() == 1)
+                return Collections.singletonMap(records.get(0), scheduleExpiry(records.get(0)));
+
+            Map<ResourceRecord, TimerWheel.Timeout> updated = results == null ? new HashMap<>() : new HashMap<>(results);
+            boolean changed = false;
+            for (ResourceRecord record : records) {
+                TimerWheel.Timeout oldTimeout = updated.get(record);
+                if (oldTimeout != null) {
+                    ResourceRecord oldRecord = findKey(updated, record);
+                    if (!oldRecord.expiresBefore(record))
+                        continue;
+                    oldTimeout.cancel();
+                    updated.remove(record);
+                }
+                updated.put(record, scheduleExpiry(record));
+                changed = true;
+            }
+            return changed ? Collections.unmodifiableMap(updated) : results;
+        });
+    }
+
+    /** Indexes the zone cut of NS records added to the heap map, unless the policy evicted them. */
+    private void indexZoneCut(DNSNode node) {
+        if (node.getType() == RecordType.NS && cachedResults.containsKey(node))
+            zoneCuts.add(node);
+    }
+
+    /** Returns true if a query has expired records that are still within the stale window.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if stale results are available for the query, false otherwise.
+     */
+    public boolean hasStaleResults(DNSNode node) {
+        return staleResults.containsKey(node);
+    }
+
+    /** Returns the expired records of a query that are still within the stale window. The
+     * records returned are copies with a short TTL (STALE_TTL), as a client receiving them
+     * should not keep them for long. The copies are not added to the cache.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        Map<ResourceRecord, TimerWheel.Timeout> stale = staleResults.get(node);
+        if (stale == null)
+            return Collections.emptySet();
+
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord record : stale.keySet())
+            results.add(record.copyFor(record.getNode(), STALE_TTL));
+        staleHitCount.increment();
+        return results;
+    }
+
+    /** Records that a query has no results, either because the name does not exist or because
+     * it has no records of the requested type. The negative result is kept for the specified
+     * TTL, or until a record is added for the query.
+     *
+     * @param node      Query that has no results.
+     * @param ttl       Negative TTL, in seconds, usually obtained from the SOA record of the zone.
+     * @param nameError True if the name does not exist (NXDOMAIN), false if it only has no
+     *                  record of the requested type (NODATA).
+     * @param soa       SOA record of the authority section of the answer, or null if none.
+     */
+    public void addNegativeResult(DNSNode node, long ttl, boolean nameError, ResourceRecord soa) {
+        if (ttl <= 0) return;
+
+        NegativeResult negative = new NegativeResult(nameError, soa, System.currentTimeMillis() + ttl * 1000);
+        negative.timeout = expiryWheel.schedule(negative.expirationTime, () -> negativeResults.remove(node, negative));
+        NegativeResult old = negativeResults.put(node, negative);
+        if (old != null)
+            old.timeout.cancel();
+    }
+
+    /** Returns true if a query is known to have no results, as recorded by addNegativeResult,
+     * and the negative result has not expired yet. Checking does not count as a negative hit.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if the query has a valid negative result, false otherwise.
+     */
+    public boolean hasNegativeResult(DNSNode node) {
+        return peekNegativeResult(node) != null;
+    }
+
+    /** Returns the negative result recorded for a query by addNegativeResult, if it has not
+     * expired yet, for a lookup answered with it: a result found counts as a negative hit.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return The negative result, or null if the query has none.
+     */
+    public NegativeResult getNegativeResult(DNSNode node) {
+        NegativeResult negative = peekNegativeResult(node);
+        if (negative != null)
+            negativeHitCount.increment();
+        return negative;
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns the negative result recorded for a query, like getNegativeResult, but without
+     * counting a negative hit, for a caller that is not answering a lookup with it.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return The negative result, or null if the query has none.
+     */
+    public NegativeResult peekNegativeResult(DNSNode node) {
+        return negativeResults.get(node);
+    }
+
+    /** Returns the addresses of the name servers of the deepest zone enclosing a name
+     * (possibly the name itself) for which both the NS records and the address of at least one
+     * of the name servers are cached. Looking for the name servers does not count as a hit or
+     * a miss of the cache.
+     *
+     * @param name     Fully qualified name.
+     * @param ipv6     True if the IPv6 addresses (AAAA records) of the name servers may be used
+     *                 as well as their IPv4 addresses.
+     * @return The cached A (and AAAA) records of the name servers, or an empty set if no
+     *         enclosing zone has usable name servers in the cache.
+     */
+    public Set<ResourceRecord> getClosestNameServers(DomainName name, boolean ipv6) {
+        for (DNSNode zone : zoneCuts.findEnclosingZones(name)) {
+            Set<ResourceRecord> nameServers = lookup(zone);
+            if (nameServers == null) {
+                zoneCuts.remove(zone);
+                continue;
+            }
+            Set<ResourceRecord> addresses = new HashSet<>();
+            for (ResourceRecord nameServer : nameServers) {
+                Set<ResourceRecord> results = lookup(new DNSNode(nameServer.getTextResult(), RecordType.A));
+                if (results != null)
+                    addresses.addAll(results);
+                results = ipv6 ? lookup(new DNSNode(nameServer.getTextResult(), RecordType.AAAA)) : null;
+                if (results != null)
+                    addresses.addAll(results);
+            }
+            if (!addresses.isEmpty())
+                return addresses;
+        }
+        return Collections.emptySet();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Queries are visited in host name
+     * order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        OffHeapRecordStore store = offHeapStore;
+        if (store != null) {
+            // The store has no order of its own either, and must not be used by the consumer
+            // while it is being scanned
+            Map<DNSNode, Set<ResourceRecord>> sorted = new TreeMap<>();
+            store.forEach(sorted::put);
+            sorted.forEach(consumer);
+            return;
+        }
+        for (DNSNode node : sortedNodes()) {
+            Map<ResourceRecord, TimerWheel.Timeout> results = cachedResults.get(node);
+            if (results != null)
+                consumer.accept(node, results.keySet());
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Queries are visited in host name
+     * order.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        forEachNode((node, results) -> results.forEach(record -> consumer.accept(node, record)));
+    }
+
+    /** Returns the number of records currently in the cache.
+     *
+     * @return Number of cached records.
+     */
+    public long getRecordCount() {
+        OffHeapRecordStore store = offHeapStore;
+        if (store != null)
+            return store.getRecordCount();
+        policyLock.lock();
+        try {
+            return policy.getRecordCount();
+        } finally {
+            policyLock.unlock();
         }
     }
 
+    /** Returns the estimated memory used by the records currently in the cache. For the off-heap
+     * store, this is the size of the blocks in use.
+     *
+     * @return Estimated size of the cached records, in bytes.
+     */
+    public long getEstimatedBytes() {
+        OffHeapRecordStore store = offHeapStore;
+        if (store != null)
+            return store.getUsedBytes();
+        policyLock.lock();
+        try {
+            return policy.getByteCount();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long getNodeCount() {
+        OffHeapRecordStore store = offHeapStore;
+        return store != null ? store.size() : cachedResults.size();
+    }
+
+    /** Returns the memory allocated by the off-heap store, or 0 if the records are kept on the
+     * heap.
+     */
+    public long getOffHeapBytes() {
+        OffHeapRecordStore store = offHeapStore;
+        return store != null ? store.getAllocatedBytes() : 0;
+    }
+
+    public long getMaximumRecords() {
+        return maxRecords;
+    }
+
+    public long getMaximumBytes() {
+        return maxBytes;
+    }
+
+    /** Returns the number of lookups that found at least one cached record. */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** Returns the number of lookups that found no cached record. */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** Returns the number of lookups answered by a negative result. */
+    public long getNegativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    /** Returns the number of negative results currently in the cache. */
+    public long getNegativeCount() {
+        return negativeResults.size();
+    }
+
+    /** Returns the number of refreshes requested from the prefetch handler. */
+    public long getPrefetchIssuedCount() {
+        return prefetchIssuedCount.sum();
+    }
+
+    /** Returns the number of refreshed queries that were looked up again before expiring. */
+    public long getPrefetchUsedCount() {
+        return prefetchUsedCount.sum();
+    }
+
+    /** Returns the number of queries for which stale results were returned. */
+    public long getStaleHitCount() {
+        return staleHitCount.sum();
+    }
+
+    /** Returns the number of queries with expired records kept in the stale area. */
+    public long getStaleNodeCount() {
+        return staleResults.size();
+    }
+
+    /** Returns the number of records removed to keep the cache within its size limits. */
+    public long getEvictionCount() {
+        OffHeapRecordStore store = offHeapStore;
+        return evictionCount.sum() + (store != null ? store.getEvictedCount() : 0);
+    }
+
+    /** Returns the number of records removed because their TTL ran out. */
+    public long getExpirationCount() {
+        OffHeapRecordStore store = offHeapStore;
+        return expirationCount.sum() + (store != null ? store.getExpiredCount() : 0);
+    }
+
+    /** Informs the eviction policy of the current number and size of the records of a node.
+     * Must not be called from within a compute function of the map, since the policy may
+     * evict other nodes.
+     */
+    private void updatePolicy(DNSNode node) {
+        policyLock.lock();
+        try {
+            writePolicy(node);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /** Updates the policy with the records now cached for a node. Called with the policy lock held. */
+    private void writePolicy(DNSNode node) {
+        Map<ResourceRecord, TimerWheel.Timeout> results = cachedResults.get(node);
+        long bytes = 0;
+        if (results != null)
+            for (ResourceRecord record : results.keySet())
+                bytes += estimateBytes(record);
+        policy.onWrite(node, results == null ? 0 : results.size(), bytes);
+    }
+
+    /** Removes all records of a node chosen for eviction by the policy. Called with the policy
+     * lock held.
+     */
+    private void evict(DNSNode node) {
+        Map<ResourceRecord, TimerWheel.Timeout> results = cachedResults.remove(node);
+        if (results == null) return;
+        results.values().forEach(TimerWheel.Timeout::cancel);
+        evictionCount.add(results.size());
+        forgetNode(node);
+    }
+
+    /** Discards the hit count, prefetch state and zone cut of a node that is no longer cached. */
+    private void forgetNode(DNSNode node) {
+        if (node.getType() == RecordType.NS)
+            zoneCuts.remove(node);
+        nodeHits.remove(node);
+        prefetchPending.remove(node);
+        prefetched.remove(node);
+    }
+
+    /** Returns a rough estimate of the heap used by a cached record: the record (with its
+     * address packed in it) and its node, its text result if it has one, plus the map entry and
+     * timeout that keep it in the cache. Domain names are interned and shared between records,
+     * so they are not counted.
+     */
+    private static long estimateBytes(ResourceRecord record) {
+        long bytes = 56 + 24 + 32 + 48;
+        if (!record.hasAddress())
+            bytes += 40 + record.getTextResult().length();
+        return bytes;
+    }
+
+    private TimerWheel.Timeout scheduleExpiry(ResourceRecord record) {
+        TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+        timeout[0] = expiryWheel.schedule(record.getExpirationTime(), () -> expire(record, timeout[0]));
+        return timeout[0];
+    }
+
+    /** Removes an expired record from the cache, dropping its node if no records are left. The
+     * record is only removed if it is still the one the timeout was scheduled for, i.e., it
+     * was not replaced by a newer equivalent record in the meantime.
+     */
+    private void expire(ResourceRecord record, TimerWheel.Timeout timeout) {
+        boolean[] expired = new boolean[1];
+        cachedResults.computeIfPresent(record.getNode(), (node, results) -> {
+            if (results.get(record) != timeout)
+                return results;
+            expired[0] = true;
+            if (results.size() == 1)
+                return null;
+            Map<ResourceRecord, TimerWheel.Timeout> updated = new HashMap<>(results);
+            updated.remove(record);
+            return Collections.unmodifiableMap(updated);
+        });
+        if (expired[0]) {
+            expirationCount.increment();
+            if (staleWindowMillis > 0)
+                addStale(record);
+            updatePolicy(record.getNode());
+            if (!cachedResults.containsKey(record.getNode()))
+                forgetNode(record.getNode());
+        }
+    }
+
+    /** Keeps an expired record in the stale area until the end of the stale window. */
+    private void addStale(ResourceRecord record) {
+        TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+        timeout[0] = expiryWheel.schedule(record.getExpirationTime() + staleWindowMillis,
+                () -> removeStale(record, timeout[0]));
+        staleResults.compute(record.getNode(), (node, stale) -> {
+            Map<ResourceRecord, TimerWheel.Timeout> updated = stale == null ? new HashMap<>() : new HashMap<>(stale);
+            TimerWheel.Timeout old = updated.put(record, timeout[0]);
+            if (old != null)
+                old.cancel();
+            return Collections.unmodifiableMap(updated);
+        });
+    }
+
+    private void removeStale(ResourceRecord record, TimerWheel.Timeout timeout) {
+        staleResults.computeIfPresent(record.getNode(), (node, stale) -> {
+            if (stale.get(record) != timeout)
+                return stale;
+            if (stale.size() == 1)
+                return null;
+            Map<ResourceRecord, TimerWheel.Timeout> updated = new HashMap<>(stale);
+            updated.remove(record);
+            return Collections.unmodifiableMap(updated);
+        });
+    }
+
+    /** Returns the instance of a record stored as a key in a map, which may be a different
+     * (equivalent) instance from the one used to search for it.
+     */
+    private static ResourceRecord findKey(Map<ResourceRecord, ?> map, ResourceRecord record) {
+        for (ResourceRecord key : map.keySet())
+            if (key.equals(record))
+                return key;
+        return null;
+    }
+
+    /** Returns a snapshot of the cached queries, sorted by host name and record type. The
+     * concurrent map has no order of its own, so the snapshot is sorted to keep the output of
+     * dumps stable.
+     *
+     * @return A sorted list of the queries currently in the cache.
+     */
+    private List<DNSNode> sortedNodes() {
+        List<DNSNode> nodes = new ArrayList<>(cachedResults.keySet());
+        Collections.sort(nodes);
+        return nodes;
+    }
+
 }
@@ -1,30 +1,33 @@
 package ca.ubc.cs.cs317.dnslookup;
-import java.net.DatagramPacket;
 import java.io.Console;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
-
     private static InetAddress rootServer;
     private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static final int SOCKET_TIMEOUT = 5000;
 
-    private static DNSCache cache = DNSCache.getInstance();
+    private static Resolver resolver;
 
-    private static Random random = new Random();
+    private static DNSCache cache = DNSCache.getInstance();
 
     /**
      * Main function, called when program is first invoked.
@@ -33,15 +36,23 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        if (args.length < 1 || args.length > 3 || (args.length > 1 && !args[1].equalsIgnoreCase("batch")
+                && !args[1].equalsIgnoreCase("serve"))) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [batch [file] | serve [port]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("In batch mode, names are read from the file (or standard input if none) and resolved concurrently.");
+            System.err.println("In serve mode, queries are received over UDP on the port (53 if none) and answered as a caching resolver.");
             System.exit(1);
         }
 
+        String mock = System.getProperty("dnslookup.mock");
+        int port = Integer.getInteger("dnslookup.port",
+                mock != null ? MockHierarchy.DEFAULT_PORT : UdpTransport.DEFAULT_SERVER_PORT);
         try {
             rootServer = InetAddress.getByName(args[0]);
+            if (mock != null)
+                rootServer = startMockHierarchy(Paths.get(mock), port);
             System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
@@ -49,13 +60,49 @@ public class DNSLookupService {
         }
 
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            UdpTransport transport = new UdpTransport(SOCKET_TIMEOUT,
+                    Integer.getInteger("dnslookup.edns.payload", UdpTransport.DEFAULT_UDP_PAYLOAD_SIZE));
+            transport.setServerPort(port);
+            resolver = new Resolver(rootServer, transport);
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
 
+        cache.setMaximumSize(Long.getLong("dnslookup.cache.maxRecords", DNSCache.DEFAULT_MAX_RECORDS),
+                Long.getLong("dnslookup.cache.maxBytes", DNSCache.DEFAULT_MAX_BYTES));
+        if (Boolean.getBoolean("dnslookup.cache.offHeap"))
+            cache.useOffHeapStore();
+        cache.setPrefetchHandler(resolver::prefetch,
+                Integer.getInteger("dnslookup.prefetch.minHits", DNSCache.DEFAULT_PREFETCH_MIN_HITS),
+                Integer.getInteger("dnslookup.prefetch.ttlPercent",
+                        (int) (DNSCache.DEFAULT_PREFETCH_TTL_FRACTION * 100)) / 100.0);
+        cache.setStaleWindow(Long.getLong("dnslookup.stale.window", 0));
+        resolver.setStaleClientTimeout(Long.getLong("dnslookup.stale.clientTimeout", 1800));
+        resolver.setLimits(Integer.getInteger("dnslookup.resolver.maxQueries", Resolver.DEFAULT_MAX_QUERIES),
+                Integer.getInteger("dnslookup.resolver.maxDepth", Resolver.MAX_INDIRECTION_LEVEL));
+        resolver.setMaxHedges(Integer.getInteger("dnslookup.hedge.max", Resolver.DEFAULT_MAX_HEDGES));
+        resolver.setIpv6Enabled(Boolean.parseBoolean(System.getProperty("dnslookup.ipv6", "true")));
+        resolver.getInfraCache().setTtl(Long.getLong("dnslookup.infra.ttl", InfraCache.DEFAULT_TTL));
+
+        String snapshot = System.getProperty("dnslookup.snapshot");
+        if (snapshot != null)
+            setUpSnapshots(Paths.get(snapshot), Long.getLong("dnslookup.snapshot.interval", 300));
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("serve")) {
+            try {
+                runServer(args.length == 3 ? Integer.parseInt(args[2]) : ResolverServer.DEFAULT_PORT);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port " + args[2] + ".");
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length > 1) {
+            runBatch(args.length == 3 ? Paths.get(args[2]) : null);
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -89,6 +136,7 @@ public class DNSLookupService {
                 if (commandArgs.length == 2) {
                     try {
                         rootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServer(rootServer);
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
@@ -109,6 +157,7 @@ public class DNSLookupService {
                         System.err.println("Invalid call. Format:\n\ttrace on|off");
                         continue;
                     }
+                    resolver.setVerboseTracing(verboseTracing);
                     System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
@@ -135,252 +184,170 @@ public class DNSLookupService {
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("memory")) {
+                // MEMORY: Print cache footprint and statistics
+                printMemoryUsage();
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print round-trip times measured for each server
+                printServerTimes();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tmemory");
+                System.err.println("\tservers");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        try {
+            resolver.close();
+        } catch (IOException e) {
+            // Exiting anyway
+        }
         System.out.println("Goodbye!");
     }
 
     /**
-     * Finds all results for a host name and type and prints them on the standard output.
+     * Starts a hierarchy of mock servers in this process, loaded from a fixture, and prints the
+     * queries each server received when the service shuts down.
      *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
+     * @param fixture File describing the servers and their zones.
+     * @param port    Port all the servers listen on.
+     * @return The address of the mock root server.
      */
-    private static void findAndPrintResults(String hostName, RecordType type) {
-
-        DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+    private static InetAddress startMockHierarchy(Path fixture, int port) {
+        try {
+            MockHierarchy hierarchy = MockHierarchy.load(fixture, port, Long.getLong("dnslookup.mock.seed", 0));
+            hierarchy.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(hierarchy.getStatistics()),
+                    "dns-mock-shutdown"));
+            System.out.println("Mock hierarchy loaded from " + fixture + " on port " + port + ".");
+            return hierarchy.getRootServer();
+        } catch (IOException e) {
+            System.err.println("Could not start mock hierarchy (" + e.getMessage() + ").");
+            System.exit(1);
+            return null;
+        }
     }
 
     /**
-     * Finds all the result for a specific node.
+     * Loads the cache from a snapshot file, if it exists, and arranges for the cache to be saved
+     * to the same file periodically and when the service shuts down.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param file     Path of the snapshot file.
+     * @param interval Interval between periodic saves, in seconds, or 0 to only save on
+     *                 shutdown.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-        
-        DNSNode usingNode  = node;
-        String NAME = usingNode.getHostName();
-        if(NAME.substring(NAME.length()-1,NAME.length()).equals(".")){
-            usingNode = new DNSNode(NAME.substring(0,NAME.length()-1), usingNode.getType());
-        }
-        if(NAME.substring(0,1).equals(".")){
-            System.err.println("\n"+"--> "+"'"+ node.getHostName()+"'"+" is not a legal name");
-            return Collections.emptySet();
-        }
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-   
-        Set<ResourceRecord> setRR = cache.getCachedResults(usingNode);
-        try{
-        if(setRR.isEmpty()){
-            InetAddress server = rootServer;
-            setRR = getFromCache(usingNode);
-            if(!setRR.isEmpty()){
-                server = chooseARecord(setRR).getInetResult();
+    private static void setUpSnapshots(Path file, long interval) {
+        if (Files.exists(file)) {
+            try {
+                long start = System.nanoTime();
+                int loaded = CacheSnapshot.load(cache, file);
+                System.out.printf("Loaded %d records from snapshot in %d ms.\n", loaded,
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException e) {
+                System.err.println("Could not load snapshot (" + e.getMessage() + ").");
             }
-            retrieveResultsFromServer(usingNode, server, indirectionLevel);
-            setRR = cache.getCachedResults(usingNode);
-        }}catch(StackOverflowError e){
+        }
 
-            System.err.println("\n"+"---> Too many queries");
-            return Collections.emptySet();
+        Runnable save = () -> {
+            try {
+                CacheSnapshot.save(cache, file);
+            } catch (IOException e) {
+                System.err.println("Could not save snapshot (" + e.getMessage() + ").");
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "dns-snapshot-shutdown"));
+        if (interval > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(save, interval, interval, TimeUnit.SECONDS);
         }
-     
-       
-        return setRR;
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Resolves all names listed in a file, or in the standard input, and prints the results as
+     * they are obtained, followed by a summary. The number of lookups in progress at the same time
+     * and the deadline of each lookup are taken from the dnslookup.batch.concurrency and
+     * dnslookup.batch.timeout (in ms) properties.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param file File with one "hostName [type]" per line, or null to read the standard input.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server, int indirectionLevel) {
-        DNSQuery dnsQuery = new DNSQuery(socket , node, server, 0, 0, verboseTracing);
-
-        if(dnsQuery.timout > 1)
-            return;
-        if(dnsQuery.answer.AA == 1 || dnsQuery.answer.ANCOUNT > 0){
-            if(dnsQuery.answer.cname == 1){
-                resolveCname(node, node, indirectionLevel);
-            }
-
-            return;
+    private static void runBatch(Path file) {
+        BatchResolver batch = new BatchResolver(resolver,
+                Integer.getInteger("dnslookup.batch.concurrency", BatchResolver.DEFAULT_CONCURRENCY),
+                Long.getLong("dnslookup.batch.timeout", BatchResolver.DEFAULT_TIMEOUT));
+        try (BufferedReader in = file == null
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            batch.run(in, out);
+        } catch (IOException e) {
+            System.err.println("Batch failed (" + e.getMessage() + ").");
         }
-        ResourceRecord newRR = dnsQuery.getServerToSendTo();
-        InetAddress nextServer =newRR.getInetResult();
-        if(newRR.getType() == RecordType.NS){
-            DNSNode newNode = new DNSNode(newRR.getTextResult(), RecordType.A);
-            Set<ResourceRecord> set = getResults(newNode, 0);
-            if(!set.isEmpty()){
-             nextServer = chooseARecord(set).getInetResult();
-            }
+        try {
+            resolver.close();
+        } catch (IOException e) {
+            // Exiting anyway
         }
-        
-        retrieveResultsFromServer(node, nextServer, indirectionLevel);
-    
-
     }
-/**
-     *
-     * Retrieves the Ipv4 corresponding to the CNAME recieved from the server
-     * it first looks at result in cache if it doesnt find it there it calls getResults()
-     * then it calls itself recursively this time it should find it in the cache
-     *
-     * @param node   Host name and record type to be used for the query.
-     * @param node2   Host name and record type to be used for the query.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * */
-    
-
-    private static void resolveCname(DNSNode node, DNSNode node2, int indirectionLevel){
-        
-       DNSNode cnamNode = new DNSNode(node2.getHostName(), RecordType.CNAME);
-    
-            String hostName = chooseARecord(cache.getCachedResults(cnamNode)).getTextResult();
-            DNSNode nodia = new DNSNode(hostName, node.getType());
-            DNSNode nodibi = new DNSNode(hostName, RecordType.CNAME);
-            Set<ResourceRecord> setRR = cache.getCachedResults(nodia);
-            Set<ResourceRecord> setRR2 = cache.getCachedResults(nodibi);
-            if(!setRR.isEmpty()){
-                for(ResourceRecord RR: setRR){
-                ResourceRecord solvedCnameRR =  new ResourceRecord(node.getHostName(),node.getType(), 
-                RR.getTTL(), RR.getInetResult());
-                cache.addResult(solvedCnameRR);}
-                return;
-            }
-            else if(!setRR2.isEmpty()){
-                resolveCname(node, nodibi, indirectionLevel);
-                
-            }else{
-                DNSNode newNode = new DNSNode(hostName, node.getType());
-                getResults(newNode, indirectionLevel+1);
-                resolveCname(node, node, indirectionLevel+1);
-
-            }
-        
-        
-
-    }
-
 
     /**
-     * if the getCachedResults return empty set then this tries to find any
-     * server on its path that is in the cache.
+     * Answers the queries received on a port, over UDP and TCP, until the process is stopped, and prints the
+     * statistics of the server when it is.
      *
-     * @param node   Host name with to get the node woth hostname and type A from cache .
-     * */
-    
-
-
-    private static Set<ResourceRecord> getFromCache(DNSNode node){
-        String name = node.getHostName();
-        String[] domainParts = name.split("\\.");
-    
-        if((domainParts[0].substring(0).equals("w") && domainParts.length == 2) || 
-        domainParts.length ==1){
-            return Collections.emptySet();
-        }
-        else if(domainParts[0].substring(0,1).equals("w") && domainParts.length > 2){
-            name = name.substring(name.indexOf(".")+1);
-            name = name.substring(name.indexOf(".")+1);
-            return getFromCacheHelper(new DNSNode(name, RecordType.A));
-        }
-        else{
-        name = name.substring(name.indexOf(".")+1);
-        DNSNode newNode = new DNSNode(name, RecordType.A);            
-        return getFromCacheHelper(newNode);
-
-
+     * @param port Port where queries are received.
+     */
+    private static void runServer(int port) {
+        String address = System.getProperty("dnslookup.server.address");
+        ResolverServer server;
+        try {
+            server = new ResolverServer(resolver,
+                    address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port),
+                    Integer.getInteger("dnslookup.server.threads", Runtime.getRuntime().availableProcessors()),
+                    Long.getLong("dnslookup.server.timeout", ResolverServer.DEFAULT_TIMEOUT),
+                    Integer.getInteger("dnslookup.server.maxPending", ResolverServer.DEFAULT_MAX_PENDING),
+                    Integer.getInteger("dnslookup.edns.payload", UdpTransport.DEFAULT_UDP_PAYLOAD_SIZE));
+            System.out.println("Listening on " + server.getLocalAddress());
+        } catch (IOException e) {
+            System.err.println("Could not start server (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
         }
-       
-
-
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+            System.out.printf("%-20s %d received, %d dropped\n", "Queries:",
+                    server.getReceivedCount(), server.getDroppedCount());
+            System.out.printf("%-20s %d from cache, %d resolved, %d failed, %d rejected\n", "Responses:",
+                    server.getCacheAnswerCount(), server.getResolvedCount(), server.getFailedCount(),
+                    server.getRejectedCount());
+        }, "dns-server-shutdown"));
+        server.run();
     }
 
-   /**
-     * Helper for getFromCache(DNSNode node)
+    /**
+     * Finds all results for a host name and type and prints them on the standard output.
      *
-     * @param node   Host name with to get the node woth hostname and type A from cache .
-     * */
-    
-
-    private static Set<ResourceRecord> getFromCacheHelper(DNSNode node){
-        String name = node.getHostName();
-        String[] domainParts = name.split("\\.");
-        Set<ResourceRecord> setRR = cache.getCachedResults(node);
-        Set<ResourceRecord> setRRNS = cache.getCachedResults(
-            new DNSNode(name, RecordType.NS));
-        DNSNode newNode = new 
-        DNSNode(node.getHostName().substring(name.indexOf(".")+1), node.getType());
-    
-        if (!setRR.isEmpty()){
-                return setRR;
-        }
-        if(!setRRNS.isEmpty()){
-            return resolveNSCache(node, node);
-        }
-        if(domainParts.length ==1){
-            return Collections.emptySet();
-        }
-
-        return getFromCacheHelper(newNode);
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
+     */
+    private static void findAndPrintResults(String hostName, RecordType type) {
 
+        DNSNode node = new DNSNode(hostName, type);
+        printResults(node, resolver.resolveAsync(node).join());
     }
- /**
-     * getFromCacheHelper(DNSNode node)
-     *
-     * @param node   Host name with to get the node woth hostname and type A from cache .
-     * */
-    
-
-    private static Set<ResourceRecord> resolveNSCache(DNSNode node, DNSNode node2){
-        DNSNode NSNode = new DNSNode(node2.getHostName(), RecordType.NS);
-    
-             String hostName = chooseARecord(cache.getCachedResults(NSNode)).getTextResult();
-             DNSNode nodia = new DNSNode(hostName, node.getType());
-             DNSNode nodibi = new DNSNode(hostName, RecordType.NS);
-             Set<ResourceRecord> setRR = cache.getCachedResults(nodia);
-             Set<ResourceRecord> setRR2 = cache.getCachedResults(nodibi);
-             if(!setRR.isEmpty()){
-                return setRR;
-             }
-             else if(!setRR2.isEmpty()){
-                 //ResourceRecord RR = chooseARecord(setRR);
-                 return resolveNSCache(node, nodibi);
-                 
-             }else{
-
-                return Collections.emptySet();
-             }
-     }
 
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
         if (verboseTracing)
@@ -410,30 +377,59 @@ public class DNSLookupService {
     }
 
     /**
-     * Given a set of ResourceRecourdes chooses one random one
-     *
-     * @param set   A set of Resource records to get a random record from .
-     * */
-    
-
-    private static ResourceRecord chooseARecord(Set<ResourceRecord> set){
-        ResourceRecord tempRR = null;
-        if(!set.isEmpty()){
-        int size = set.size();
-        int item = new Random().nextInt(size); 
-        int i = 0;
-        for(ResourceRecord obj : set)
-        {
-            if (i == item){
-                tempRR = obj;
-                
-            }
-            i++;
-        }}
-        
-        return tempRR;
+     * Prints the smoothed round-trip time, its variation and the expected round-trip time (the
+     * smoothed one, decayed while the server is not used) of each server queried, from the one
+     * expected to answer first, followed by the number of hedged queries, the number of queries
+     * retried over TCP and the servers skipped because they failed recently.
+     */
+    private static void printServerTimes() {
+        System.out.printf("%-20s %10s %10s %10s %8s %8s %8s\n", "Server", "Expected", "SRTT", "RTTVAR",
+                "Samples", "Timeouts", "Idle");
+        resolver.getTransport().getRttTable().forEach((server, entry) ->
+                System.out.printf("%-20s %8.1fms %8.1fms %8.1fms %8d %8d %7ds\n", server.getHostAddress(),
+                        entry.getExpectedRtt(), entry.getSmoothedRtt(), entry.getRttVariation(),
+                        entry.getSampleCount(), entry.getTimeoutCount(), entry.getIdleTime() / 1000));
+        long queries = resolver.getQueryCount();
+        System.out.printf("%-20s %d of %d queries (%.1f%%), %d answered first, %d over the limit\n", "Hedged:",
+                resolver.getHedgeCount(), queries, queries == 0 ? 0.0 : 100.0 * resolver.getHedgeCount() / queries,
+                resolver.getHedgeWinCount(), resolver.getHedgeSkippedCount());
+        TcpTransport tcp = resolver.getTransport().getTcpTransport();
+        System.out.printf("%-20s %d queries after truncation, %d failed\n", "TCP:",
+                tcp.getSentCount(), tcp.getFailedCount());
+        InfraCache infraCache = resolver.getInfraCache();
+        System.out.printf("%-20s %d times\n", "Skipped:", infraCache.getSkippedCount());
+        infraCache.forEach((server, entry) ->
+                System.out.printf("  %-18s %-12s for %ds\n", server.getHostAddress(),
+                        entry.getReason().toString().toLowerCase(), (entry.getRemainingTime() + 999) / 1000));
+    }
 
+    /**
+     * Prints the current size of the cache, its limits, the hit ratio of cache lookups, the
+     * number of records removed from the cache and the number of duplicate lookups and queries
+     * avoided by the resolver.
+     */
+    private static void printMemoryUsage() {
+        long hits = cache.getHitCount();
+        long lookups = hits + cache.getMissCount();
+        System.out.printf("%-20s %d in %d names (limit %d)\n", "Records:",
+                cache.getRecordCount(), cache.getNodeCount(), cache.getMaximumRecords());
+        System.out.printf("%-20s %.1f KiB (limit %.1f KiB)\n", "Estimated size:",
+                cache.getEstimatedBytes() / 1024.0, cache.getMaximumBytes() / 1024.0);
+        if (cache.isOffHeap())
+            System.out.printf("%-20s %.1f KiB allocated\n", "Off-heap store:", cache.getOffHeapBytes() / 1024.0);
+        System.out.printf("%-20s %.1f%% (%d hits, %d lookups)\n", "Hit ratio:",
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, hits, lookups);
+        System.out.printf("%-20s %d evicted, %d expired\n", "Removed records:",
+                cache.getEvictionCount(), cache.getExpirationCount());
+        System.out.printf("%-20s %d cached, %d hits\n", "Negative results:",
+                cache.getNegativeCount(), cache.getNegativeHitCount());
+        System.out.printf("%-20s %d issued, %d used\n", "Prefetches:",
+                cache.getPrefetchIssuedCount(), cache.getPrefetchUsedCount());
+        System.out.printf("%-20s %d names, %d served\n", "Stale results:",
+                cache.getStaleNodeCount(), cache.getStaleHitCount());
+        System.out.printf("%-20s %d lookups, %d queries\n", "Coalesced:",
+                resolver.getCoalescedLookupCount(), resolver.getCoalescedQueryCount());
     }
 
-   
+
 }
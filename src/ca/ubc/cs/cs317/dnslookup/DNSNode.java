@@ -4,20 +4,37 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal; host names are
+ * compared without regard to case, through their canonical DomainName, which is also used to
+ * hash and order nodes.
+ *
+ * The host name is kept as given only if it differs from the text of its canonical name (for
+ * example, if it has capital letters), so it can be displayed as the user or the server wrote it.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
+    private DomainName name;
     private String hostName;
     private RecordType type;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this.name = DomainName.of(hostName);
+        this.hostName = hostName.equals(name.toString()) ? null : hostName;
+        this.type = type;
+    }
+
+    public DNSNode(DomainName name, RecordType type) {
+        this.name = name;
         this.type = type;
     }
 
     public String getHostName() {
-        return hostName;
+        return hostName != null ? hostName : name.toString();
+    }
+
+    /** The canonical form of the host name. */
+    public DomainName getName() {
+        return name;
     }
 
     public RecordType getType() {
@@ -31,26 +48,27 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        if (!name.equals(dnsNode.name)) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
+        int result = name.hashCode();
         result = 31 * result + type.hashCode();
         return result;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return getHostName() + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        int result = name.compareTo(o.name);
+        if (result != 0)
+            return result;
         else
             return type.compareTo(o.type);
     }
@@ -1,25 +1,15 @@
 package ca.ubc.cs.cs317.dnslookup;
-import java.net.DatagramPacket;
-import java.io.Console;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.*;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.DataInputStream;
-import java.io.ByteArrayInputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 
 
 
 public class DNSQuery{
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static boolean verboseTracing;
-    public static InetAddress recievServer;
+    private boolean verboseTracing;
+    public InetAddress recievServer;
     public DNSNode nodeQueried;
     public short ID;
     public int QR = 0;
@@ -38,12 +28,15 @@ public class DNSQuery{
     public short QCLASS = 1;
     public DNSResponse answer;
     public int timout = 0;
+    public boolean answered = false;
     DNSCache cache = DNSCache.getInstance();
+    private UdpTransport transport;
+    private final DatagramBufferPool bufferPool = DatagramBufferPool.getInstance();
 
     /**
-     * Initiates a class of Query which send a query to the server and caches the result
+     * Initiates a class of Query which will send a query to the server and cache the result
      *
-     * @param socket Socket to send the Datagram packet to the DNS server.
+     * @param transport Transport used to send the query and receive its response.
      * @param node    Node to be queried from the DNS server.
      * @param server address of the server being sent to
      * @param OPCODE OPCODE used in the datagram packet sent to the server
@@ -51,7 +44,7 @@ public class DNSQuery{
      * @param verbose If Tracing is requested
      */
 
-    public DNSQuery(DatagramSocket socket, DNSNode node, InetAddress server, int OPCODE, int RD, boolean verbose){
+    public DNSQuery(UdpTransport transport, DNSNode node, InetAddress server, int OPCODE, int RD, boolean verbose){
         this.ID = (short) random.nextInt(Short.MAX_VALUE + 1);
         this.QR = (short) this.QR << 15;
         this.RD = RD << 8;
@@ -59,10 +52,18 @@ public class DNSQuery{
         this.nodeQueried = node;
         recievServer = server;
         verboseTracing = verbose;
+        this.transport = transport;
 
-        MakeDNSQuery(socket, node, server);
-      
+    }
 
+    /**
+     * Sends the query, repeating it if no valid response is received in time
+     *
+     * @return a future completed with this query once it has an answer or has given up
+     */
+
+    public CompletableFuture<DNSQuery> send(){
+        return MakeDNSQuery(transport, nodeQueried, recievServer);
     }
 
     /**
@@ -71,40 +72,20 @@ public class DNSQuery{
      */
 
     public void verbosePrintResourceRecord(){
-        ArrayList<ResourceRecord> nsResource = new ArrayList<ResourceRecord>();
-        ArrayList<ResourceRecord> aResource = new ArrayList<ResourceRecord>();
-        ArrayList<ResourceRecord> adResource = new ArrayList<ResourceRecord>();
-        int nscount = 0;
-        int adCount = 0;
         String Server = recievServer.toString();
         System.out.println("\n\n");
         System.out.println("Query ID     "+ this.ID +" "+ nodeQueried.getHostName() 
         +"  "+nodeQueried.getType()+ " --> "+ Server.substring(1,Server.length()));
         System.out.println("Response ID: "+ this.ID +" "+ "Authoritative = "+ (answer.AA == 1));
-        for(ResourceRecord RR: answer.resourceList){
-            if(RR.getType() == RecordType.NS){
-                nscount++;  
-                nsResource.add(RR);
-            }else if(RR.getNode().equals(nodeQueried)){
-                aResource.add(RR);
-                if(answer.ANCOUNT < aResource.size())
-                    answer.ANCOUNT++;
-            }
-            else{
-                adResource.add(RR);
-            }
-              
-        }
-        adCount = answer.resourceList.size()-nscount - answer.ANCOUNT;
-        System.out.println("  Answers ("+ answer.ANCOUNT +")");
-        for(ResourceRecord RR: aResource){
+        System.out.println("  Answers ("+ answer.answers.size() +")");
+        for(ResourceRecord RR: answer.answers){
             verbosePrintResourceRecord( RR, 0);}
-        System.out.println("  Nameservers ("+ nscount +")");
-        for(ResourceRecord RR: nsResource){
+        System.out.println("  Nameservers ("+ answer.authorities.size() +")");
+        for(ResourceRecord RR: answer.authorities){
             verbosePrintResourceRecord( RR, 0);
         }
-        System.out.println("  Additional Information ("+ adCount +")");
-        for(ResourceRecord RR: adResource){
+        System.out.println("  Additional Information ("+ answer.additionals.size() +")");
+        for(ResourceRecord RR: answer.additionals){
             verbosePrintResourceRecord( RR, 0);
             }
     }
@@ -115,7 +96,7 @@ public class DNSQuery{
      * @param record record to be printed.
      * @param rtype type to be printed in case of others type
      */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
+    private void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
         if (verboseTracing)
             System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
                 record.getTTL(),
@@ -123,123 +104,92 @@ public class DNSQuery{
                 record.getType() == RecordType.SOA ? "----" : record.getTextResult());
     }
 
-     /**
-     * gets the next server to send the the query  based on the results got from the current query
-     */
-
-    public ResourceRecord getServerToSendTo(){
-        ResourceRecord RRb = new ResourceRecord(".", RecordType.A, 1000, recievServer);
-        //RecordType DesiredType = RecordType.NS;
-        RecordType DesiredType2 = RecordType.SOA;
-        if (answer.ARCOUNT == 0 && answer.NSCOUNT > 0 && answer.ANCOUNT == 0){
-            
-            return answer.resourceList.get(0);}
-        RecordType DesiredType = RecordType.A;
-        //}
-        for(ResourceRecord RR: this.answer.resourceList ){
-            if (RR.getType() == DesiredType || RR.getType() == RecordType.CNAME){
-                return RR;
-
-            }
-            if(RR.getType() == DesiredType2){
-                return RR;
-
-            }
-        }
-         return RRb;
-
-    }
-
     /**
      * creates a DNSQuery in a correct format and sends the data to the 
-     *  the server through the socket.
-     * @param socket record to be printed.
+     *  the server through the transport.
+     * @param transport record to be printed.
      * @param node type to be printed in case of others type
      * @param server type to be printed in case of others type
      */
 
 
-    public void MakeDNSQuery(DatagramSocket socket, DNSNode node,InetAddress server){
-       try{  
-       
-
-            short flag = (short) (((short) QR) ^ Opcode ^ AA ^ TC ^ RD ^ RA ^ z);
-     
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-
-            // to how the Identifier field is used in many of the ICMP message types.
-            dos.writeShort(this.ID);
-            dos.writeShort(flag);
-            dos.writeShort(QDCOUNT);
-            dos.writeShort(ANCOUNT);
-            dos.writeShort(NSCOUNT);
-            dos.writeShort(ARCOUNT);
-
-            String[] domainParts = node.getHostName().split("\\.");
-       
-            for (int i = 0; i<domainParts.length; i++) {
-                byte[] domainBytes = domainParts[i].getBytes("UTF-8");
-                dos.writeByte(domainBytes.length);
-                dos.write(domainBytes);
-            }
-            dos.writeByte(0x00);
-
-            dos.writeShort(QTYPE);
-            dos.writeShort(QCLASS);
-
-            byte[] dnsFrame = baos.toByteArray();
-            //socket = new DatagramSocket();
-            //socket.setSoTimeout(3000);
-            DatagramPacket dnsReqPacket = new DatagramPacket(dnsFrame, dnsFrame.length, server, DEFAULT_DNS_PORT);
-            socket.send(dnsReqPacket);
+    public CompletableFuture<DNSQuery> MakeDNSQuery(UdpTransport transport, DNSNode node,InetAddress server){
+            return FetchDNSResponse(transport.query(this.ID, flag(), node, server, transport.getServerPort(), this.timout));
+    }
 
-            FetchDNSResponse(socket);
+/**
+ *  Parses the response once the transport receives it, or sends the query again with a
+ *  longer timeout. A truncated response is replaced by the response to the same query over
+ *  TCP, and a server rejecting EDNS0 gets the query again without it.
+     * @param response future completed by the transport with the response
+     */
 
+    
+public CompletableFuture<DNSQuery> FetchDNSResponse(CompletableFuture<DatagramBufferPool.Buffer> response){
+        this.answer = new DNSResponse(); 
+        return response.handle((buffer, error) -> {
+        if (error == null){
+            try {
+                DNSResponseParser parser = new DNSResponseParser(buffer.getByteBuffer());
+                answer.ID = (short) parser.getID();
+                if (checkMatchID(answer)){
+                    if (parser.isTruncated())
+                        return FetchTCPResponse(transport.getTcpTransport().query(this.ID, flag(), nodeQueried, recievServer, transport.getServerPort()));
+                    if (parser.getRCODE() == 1 && transport.isEdnsEnabled(recievServer)){
+                        // FORMERR: the server does not understand the OPT record
+                        transport.disableEdns(recievServer);
+                        return MakeDNSQuery(transport, nodeQueried, recievServer);
+                    }
+                    parser.parse();
+                    answer.setRecords(parser);
+                    answered = true;
+                    return CompletableFuture.completedFuture(this);
+                }
+            } catch (Exception e){
+                // Malformed response, handled as a lost one
+            } finally {
+                bufferPool.release(buffer);
             }
-        catch(Exception e){
-       
         }
-     
-    }
+        return retry();
+    }).thenCompose(query -> query);
+
+}
 
 /**
- *  Fetches the response recieved from the DNS server into a buffer
-     * @param socket socket to recieve the data through
+ *  Parses the response to the query sent over TCP after a truncated response, or sends the
+ *  query again over UDP
+     * @param response future completed by the TCP transport with the response
      */
 
-    
-public void FetchDNSResponse(DatagramSocket socket){
-        try{
-
-        this.answer = new DNSResponse(); 
-        byte[] buf = new byte[1024];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        socket.receive(packet);
-
-
-        DataInputStream din = new DataInputStream(new ByteArrayInputStream(buf));
-        short ID = din.readShort();
-        answer.ID = ID;
-        short Flag = din.readShort();
-        answer.Flag = Flag;
-        answer.AA = (byte) ((Flag & 0x0400) >> 10);
-        answer.TC = (byte) ((Flag & 0x0200) >> 9);
-        answer.RA = (byte) ((Flag & 0x0080) >> 7);
-        this.QDCOUNT = din.readShort();
-        answer.ANCOUNT = din.readShort();
-        answer.NSCOUNT = din.readShort();
-        answer.ARCOUNT = din.readShort();
-
-        if (!checkMatchID(answer)){
-            throw new Exception();
+public CompletableFuture<DNSQuery> FetchTCPResponse(CompletableFuture<ByteBuffer> response){
+        return response.handle((bytes, error) -> {
+        if (error == null){
+            try {
+                DNSResponseParser parser = new DNSResponseParser(bytes);
+                answer.ID = (short) parser.getID();
+                if (checkMatchID(answer)){
+                    parser.parse();
+                    answer.setRecords(parser);
+                    answered = true;
+                    return CompletableFuture.completedFuture(this);
+                }
+            } catch (Exception e){
+                // Malformed response, handled as a lost one
+            }
         }
-        answer.getResourceRecords(din, buf);
+        return retry();
+    }).thenCompose(query -> query);
 
-    }
-    catch(Exception e){
+}
+
+/**
+ *  Sends the query again, unless it was already sent the maximum number of times
+ */
+
+private CompletableFuture<DNSQuery> retry(){
         if(this.timout > 1)
-            return;
+            return CompletableFuture.completedFuture(this);
         else{
             if(verboseTracing){
                 String Server = recievServer.toString();
@@ -248,18 +198,24 @@ public void FetchDNSResponse(DatagramSocket socket){
                 +"  "+nodeQueried.getType()+ " --> "+ Server.substring(1,Server.length())); 
             }
             this.timout++;
-            MakeDNSQuery(socket, nodeQueried, recievServer);
+            return MakeDNSQuery(transport, nodeQueried, recievServer);
         }
-            
-
+}
 
-    }
+private short flag(){
+        return (short) (((short) QR) ^ Opcode ^ AA ^ TC ^ RD ^ RA ^ z);
+}
 
 
 
-}
+    /**
+    *  True if a response was received, false if the query gave up after its retries
+    */
 
+public boolean isAnswered(){
+        return answered;
 
+    }
 
     /**
     *  To confirm that the ID of the response and the Query are the same
@@ -292,194 +248,91 @@ class DNSResponse {
     public short NSCOUNT;
     public short ARCOUNT;
     public int cname;
-    ArrayList<ResourceRecord> resourceList = new ArrayList<ResourceRecord>();
-  
+    public long soaTTL = -1;
+    public long soaMinimum = -1;
+    List<ResourceRecord> answers = Collections.emptyList();
+    List<ResourceRecord> authorities = Collections.emptyList();
+    List<ResourceRecord> additionals = Collections.emptyList();
+
     /**
-     * Gets the resource records and put them in a list
+     * Copies the header fields and the records of each section from a parsed response,
+     * then caches the records.
      *
-     * @param din the buf stored in DataInputStream format.
-     * @param buf array of bytes holding the response.
+     * @param parser Parser that already parsed the response.
      */
-
-    public void getResourceRecords(DataInputStream din, byte[] buf){
-        int currAddress = 12;
-        try{int recLen = 0;
-            while ((recLen = din.readByte()) > 0) {
-            byte[] record = new byte[recLen];
-            currAddress++;
-            currAddress += recLen;
-            for (int i = 0; i < recLen; i++) {
-                record[i] = din.readByte();
-            }
-
-            }
-            currAddress++;
-            short Recordtype = din.readShort();
-            short RecordClass = din.readShort();
-    
-            currAddress += 4;
-   
-            getResourceRecordsHelper(din, buf, currAddress);}   
-            catch(IOException exception){
-
-        }
+    public void setRecords(DNSResponseParser parser){
+        Flag = (short) parser.getFlags();
+        AA = (byte) (parser.isAuthoritative() ? 1 : 0);
+        TC = (byte) (parser.isTruncated() ? 1 : 0);
+        RA = (byte) (parser.isRecursionAvailable() ? 1 : 0);
+        RCODE = (short) parser.getRCODE();
+        ANCOUNT = (short) parser.getAnswerCount();
+        NSCOUNT = (short) parser.getAuthorityCount();
+        ARCOUNT = (short) parser.getAdditionalCount();
+        soaTTL = parser.getSOATTL();
+        soaMinimum = parser.getSOAMinimum();
+
+        answers = parser.getAnswers();
+        authorities = parser.getAuthorities();
+        additionals = parser.getAdditionals();
+
+        cacheResults();
+        if(verboseTracing)
+            verbosePrintResourceRecord();
     }
 
     /**
-     * Gets the resource records and put them in a list, Helper function for 
-     * the getResourceRecords to do the answer part of the response using a while loop
-     * making the function smaller.
-     * @param din the buf stored in DataInputStream format.
-     * @param buf array of bytes holding the response.
-     * @param currAddress current address in the buf array
+     * Returns true if this response says the name queried does not exist (NXDOMAIN).
      */
-
-    public void getResourceRecordsHelper(DataInputStream din, byte[] buf, int currAddress){
-
-    while( currAddress<buf.length-1 && buf[currAddress] != 0x0){
-        try{ short NamePointer = din.readShort();
-        short Type = din.readShort();
-        RecordType type = RecordType.getByCode(Type);
-        short Class = din.readShort();
-        int TTL = din.readInt();
-        long ttl = (int) TTL;
-        short RDLENGTH = din.readShort();
-        ResourceRecord dNSRecord;
-        currAddress += 12;
-
-        advanceRDATA(din, RDLENGTH);
-        
-        int pointer = (int) (NamePointer & 0x03FF);
-
-        String hostName = fetchName(buf, pointer, RecordType.NS, RDLENGTH);
-        if(!hostName.isEmpty())
-            hostName = hostName.substring(1, hostName.length());
-        String inetAdd = fetchName(buf, currAddress, type, RDLENGTH);
-
-        currAddress += RDLENGTH;
-        if(type == RecordType.NS || type == RecordType.CNAME){
-            inetAdd = inetAdd.substring(1,inetAdd.length());
-            dNSRecord = new ResourceRecord(hostName, type, TTL, inetAdd);
-        }else{
-            InetAddress inetAddress = InetAddress.getByName(inetAdd);
-            dNSRecord = new ResourceRecord(hostName, type, TTL, inetAddress);
-        }
-        
-
-        
-        resourceList.add(dNSRecord);
-
-        }
-        catch(IOException exception){
-
-       }
-
-    
-    
+    public boolean isNameError(){
+        return RCODE == 3;
     }
-    cacheResults();
-    if(verboseTracing)
-        verbosePrintResourceRecord();
-}
 
- /**
-     * Cache all the fetched resource records from the DNS server response.
+    /**
+     * Returns true if this response can be cached as a negative answer (RFC 2308): it has no
+     * answers, it is either a name error or an authoritative answer without data (NODATA),
+     * and it has an SOA record in the authority section that provides the negative TTL.
      */
-
-
-
-    public void cacheResults(){
-        for(ResourceRecord RR: this.resourceList ){
-            if(RR.getType() == RecordType.CNAME){
-                this.cname = 1;
-            }
-            cache.addResult(RR);
-        }
-
+    public boolean isNegativeAnswer(){
+        return ANCOUNT == 0 && soaMinimum >= 0 && (isNameError() || (AA == 1 && RCODE == 0));
     }
 
     /**
-     * fetches the name of the Resource Record from the buf array 
-     * @param buf the buf stored in DataInputStream format.
-     * @param currAddress Current Adress in the buf array.
-     * @param type Type of the RR, AA, AAAA, CNAME and NS have different 
-     * way of fetching the name
-     * @param counter Length of the name, only used for types A, AAAA
+     * The SOA record of the authority section, which comes with negative answers, or null if
+     * there is none.
      */
-
-    public String fetchName(byte[] buf, int currAddress, RecordType type, int counter ){
-
-        int c = currAddress;
-        String inetAdd = "";
-        boolean Break = false;  
-        if (type == RecordType.NS || type == RecordType.CNAME){
-        while(buf[c] != 0x0){
-            if((buf[c] & 0xc0) == 0xc0){
-                int modif = 0x00FF &buf[c+1];
-                int point1 = (short) ((buf[c] << 8) | modif);
-                int point = point1 & 0x03FF;
-                inetAdd += fetchName( buf, point, type, 2000);
-                Break = true;
-
-            }
-            if(Break)
-                break; 
-               
-            if(buf[c] < 33){
-                inetAdd += '.';}
-            else{
-        
-                  char  ascci = (char) (buf[c]& 0xFF);
-                  inetAdd += ascci;
-               
-            }
-        c++;
-        }}
-
-        if (type == RecordType.A){
-            for (int i = 0; i < counter ; i++){
-
-                inetAdd +=  String.format("%d", (buf[c + i] & 0xFF)) + ".";
+    public ResourceRecord getSOA(){
+        for(ResourceRecord RR: authorities){
+            if(RR.getType() == RecordType.SOA){
+                return RR;
             }
-            inetAdd = inetAdd.substring(0,inetAdd.length()-1);
-
-
         }
-        if(type == RecordType.AAAA){
-            for (int i = 0; i < counter; i += 2){
-                short part1 = (short) ((buf[c + i] << 8) | 0xFF);
-                short part2 = (short) (buf[c + i + 1] | 0xFF00); 
-                inetAdd +=  String.format("%x", ((short) (part1 & part2))) + ":";
-            }
-
-            inetAdd = inetAdd.substring(0,inetAdd.length()-1);
-        }
-    
-  
-        return inetAdd;
+        return null;
     }
 
-
     /**
-     * goes through the Name in the DataInputStream.
-     * @param din DataInputStream of the buf array.
-     * @param length Length of the name, only used for types A, AAAA
+     * The TTL of a negative answer, which is the smaller of the TTL of the SOA record and
+     * its MINIMUM field.
      */
+    public long getNegativeTTL(){
+        return Math.min(soaTTL, soaMinimum);
+    }
 
-    public void advanceRDATA(DataInputStream din, int length ){
-        try{
-            for (int i = 0; i < length; i++ ) {
-                din.readByte();
+    /**
+     * Cache all the fetched resource records from the DNS server response.
+     */
+    public void cacheResults(){
+        for(List<ResourceRecord> section: List.of(answers, authorities, additionals)){
+            for(ResourceRecord RR: section){
+                if(RR.getType() == RecordType.CNAME){
+                    this.cname = 1;
+                }
+                cache.addResult(RR);
             }
-
-        }
-        catch(Exception exception){
-
         }
 
     }
 
-   
 }
 
 
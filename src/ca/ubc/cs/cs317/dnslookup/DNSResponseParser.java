@@ -0,0 +1,344 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Parses a DNS message in wire format (RFC 1035, section 4) directly from a byte buffer. All
+ * fields are read at absolute offsets from the start of the message, so the buffer is never
+ * copied and its position is never changed. Compressed names are followed through their
+ * pointers; a pointer must refer to an earlier part of the message than the label that
+ * contains it, which guarantees that a malicious message cannot make the parser loop.
+ *
+ * The owner names of the question and of the records are read straight into their interned
+ * DomainName, label by label, without building a string.
+ *
+ * Records are split in the answer, authority and additional sections. Addresses in A and AAAA
+ * records are built directly from their bytes, names in NS and CNAME records are decoded, MX
+ * and SOA records are converted to their usual textual representation, and records of any
+ * other type are represented in the generic format of RFC 3597. The EDNS0 OPT pseudo-record
+ * (RFC 6891) is not a record of any section: it is read for the UDP payload size it advertises
+ * and left out.
+ */
+public class DNSResponseParser {
+
+    public static final int HEADER_LENGTH = 12;
+
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABELS = 128;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int length;
+
+    private final StringBuilder builder = new StringBuilder(64);
+    private int nameEnd;
+    private final int[] labelOffsets = new int[MAX_LABELS];
+    private final byte[] labelBytes = new byte[64];
+
+    private DomainName questionName;
+    private int questionType;
+    private final List<ResourceRecord> answers = new ArrayList<>();
+    private final List<ResourceRecord> authorities = new ArrayList<>();
+    private final List<ResourceRecord> additionals = new ArrayList<>();
+    private long soaTTL = -1;
+    private long soaMinimum = -1;
+    private int udpPayloadSize = -1;
+
+    /** Creates a parser for the message between the current position and the limit of a
+     * buffer. Only the header is available until parse is called.
+     *
+     * @param buffer Buffer containing the message.
+     * @throws IOException if the message is too short to contain a header.
+     */
+    public DNSResponseParser(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        this.base = buffer.position();
+        this.length = buffer.remaining();
+        if (length < HEADER_LENGTH)
+            throw new IOException("Message too short (" + length + " bytes)");
+    }
+
+    public int getID() {
+        return u16(0);
+    }
+
+    public int getFlags() {
+        return u16(2);
+    }
+
+    public boolean isResponse() {
+        return (getFlags() & 0x8000) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (getFlags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public boolean isRecursionAvailable() {
+        return (getFlags() & 0x0080) != 0;
+    }
+
+    public int getRCODE() {
+        return getFlags() & 0x000F;
+    }
+
+    public int getQuestionCount() {
+        return u16(4);
+    }
+
+    public int getAnswerCount() {
+        return u16(6);
+    }
+
+    public int getAuthorityCount() {
+        return u16(8);
+    }
+
+    public int getAdditionalCount() {
+        return u16(10);
+    }
+
+    /** Parses the question and the first question name of the message, which is enough to
+     * match a response with the query it answers without decoding any record.
+     *
+     * @return The offset of the first record after the question section.
+     * @throws IOException if the question section is malformed.
+     */
+    public int parseQuestion() throws IOException {
+        try {
+            int offset = HEADER_LENGTH;
+            for (int i = 0; i < getQuestionCount(); i++) {
+                DomainName name = readDomainName(offset);
+                offset = nameEnd;
+                if (i == 0) {
+                    questionName = name;
+                    questionType = u16(offset);
+                }
+                offset += 4;
+            }
+            return offset;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated question section", e);
+        }
+    }
+
+    /** Parses the whole message: the question and all records of the answer, authority and
+     * additional sections.
+     *
+     * @throws IOException if the message is malformed.
+     */
+    public void parse() throws IOException {
+        int offset = parseQuestion();
+        try {
+            offset = parseSection(offset, getAnswerCount(), answers);
+            offset = parseSection(offset, getAuthorityCount(), authorities);
+            parseSection(offset, getAdditionalCount(), additionals);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated resource record", e);
+        }
+    }
+
+    /** The name of the first question, or null if the message has no question. */
+    public DomainName getQuestionName() {
+        return questionName;
+    }
+
+    /** The record type code of the first question. */
+    public int getQuestionType() {
+        return questionType;
+    }
+
+    public List<ResourceRecord> getAnswers() {
+        return answers;
+    }
+
+    public List<ResourceRecord> getAuthorities() {
+        return authorities;
+    }
+
+    public List<ResourceRecord> getAdditionals() {
+        return additionals;
+    }
+
+    /** The UDP payload size advertised in the OPT record of the message, or -1 if it has none
+     * (the server does not support EDNS0).
+     */
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /** The TTL of the SOA record in the authority section, or -1 if there is none. */
+    public long getSOATTL() {
+        return soaTTL;
+    }
+
+    /** The MINIMUM field of the SOA record in the authority section, or -1 if there is none. */
+    public long getSOAMinimum() {
+        return soaMinimum;
+    }
+
+    private int parseSection(int offset, int count, List<ResourceRecord> section) throws IOException {
+        for (int i = 0; i < count; i++) {
+            DomainName name = readDomainName(offset);
+            offset = nameEnd;
+            int typeCode = u16(offset);
+            long ttl = u32(offset + 4);
+            if (ttl > Integer.MAX_VALUE)
+                ttl = 0; // RFC 2181, section 8
+            int rdLength = u16(offset + 8);
+            int rdata = offset + 10;
+            offset = rdata + rdLength;
+            if (offset > length)
+                throw new IOException("Resource record data beyond end of message");
+            if (typeCode == QueryEncoder.TYPE_OPT) {
+                udpPayloadSize = u16(rdata - 8);
+                continue;
+            }
+
+            RecordType type = RecordType.getByCode(typeCode);
+            DNSNode node = new DNSNode(name, type);
+            ResourceRecord record;
+            switch (type) {
+                case A:
+                case AAAA:
+                    if (rdLength != (type == RecordType.A ? 4 : 16))
+                        throw new IOException("Invalid address length " + rdLength);
+                    byte[] address = new byte[rdLength];
+                    buffer.get(base + rdata, address);
+                    record = new ResourceRecord(node, ttl, address);
+                    break;
+                case NS:
+                case CNAME:
+                    record = new ResourceRecord(node, ttl, readName(rdata));
+                    break;
+                case MX:
+                    record = new ResourceRecord(node, ttl, u16(rdata) + " " + readName(rdata + 2));
+                    break;
+                case SOA:
+                    String mname = readName(rdata);
+                    String rname = readName(nameEnd);
+                    int fields = nameEnd;
+                    long minimum = u32(fields + 16);
+                    record = new ResourceRecord(node, ttl, mname + " " + rname + " " + u32(fields)
+                            + " " + u32(fields + 4) + " " + u32(fields + 8) + " " + u32(fields + 12) + " " + minimum);
+                    if (section == authorities && soaMinimum < 0) {
+                        soaTTL = ttl;
+                        soaMinimum = minimum;
+                    }
+                    break;
+                default:
+                    record = new ResourceRecord(node, ttl, unknownRdata(rdata, rdLength));
+            }
+            section.add(record);
+        }
+        return offset;
+    }
+
+    /** Reads a (possibly compressed) domain name into its canonical form. The labels are found
+     * first, following pointers as readName does, then interned from the root up. The offset of
+     * the first byte after the name is stored in nameEnd.
+     */
+    private DomainName readDomainName(int offset) throws IOException {
+        int count = 0;
+        int end = -1;
+        int labelStart = offset;
+        int nameLength = 1;
+        while (true) {
+            int len = u8(offset);
+            if ((len & 0xC0) == 0xC0) {
+                int pointer = ((len & 0x3F) << 8) | u8(offset + 1);
+                if (end < 0)
+                    end = offset + 2;
+                if (pointer >= labelStart)
+                    throw new IOException("Invalid compression pointer at offset " + offset);
+                offset = labelStart = pointer;
+            } else if ((len & 0xC0) != 0) {
+                throw new IOException("Invalid label type at offset " + offset);
+            } else if (len == 0) {
+                nameEnd = end < 0 ? offset + 1 : end;
+                break;
+            } else {
+                nameLength += len + 1;
+                if (nameLength > MAX_NAME_LENGTH || count == MAX_LABELS)
+                    throw new IOException("Name too long at offset " + offset);
+                if (offset + len >= length)
+                    throw new IndexOutOfBoundsException(offset + len);
+                labelOffsets[count++] = offset;
+                offset += len + 1;
+            }
+        }
+
+        DomainName name = DomainName.ROOT;
+        for (int i = count - 1; i >= 0; i--) {
+            int len = u8(labelOffsets[i]);
+            buffer.get(base + labelOffsets[i] + 1, labelBytes, 0, len);
+            name = name.child(labelBytes, 0, len);
+        }
+        return name;
+    }
+
+    /** Reads a (possibly compressed) domain name. The name is returned without the trailing
+     * dot, and the offset of the first byte after the name (at its original location, not
+     * where pointers lead) is stored in nameEnd.
+     */
+    private String readName(int offset) throws IOException {
+        builder.setLength(0);
+        int end = -1;
+        int labelStart = offset;
+        while (true) {
+            int len = u8(offset);
+            if ((len & 0xC0) == 0xC0) {
+                int pointer = ((len & 0x3F) << 8) | u8(offset + 1);
+                if (end < 0)
+                    end = offset + 2;
+                if (pointer >= labelStart)
+                    throw new IOException("Invalid compression pointer at offset " + offset);
+                offset = labelStart = pointer;
+            } else if ((len & 0xC0) != 0) {
+                throw new IOException("Invalid label type at offset " + offset);
+            } else if (len == 0) {
+                nameEnd = end < 0 ? offset + 1 : end;
+                return builder.toString();
+            } else {
+                if (builder.length() > 0)
+                    builder.append('.');
+                if (builder.length() + len > MAX_NAME_LENGTH)
+                    throw new IOException("Name too long at offset " + offset);
+                for (int i = 1; i <= len; i++)
+                    builder.append((char) u8(offset + i));
+                offset += len + 1;
+            }
+        }
+    }
+
+    private String unknownRdata(int offset, int rdLength) {
+        StringBuilder text = new StringBuilder(6 + 2 * rdLength).append("\\# ").append(rdLength).append(' ');
+        for (int i = 0; i < rdLength; i++) {
+            int b = u8(offset + i);
+            text.append(HEX[b >> 4]).append(HEX[b & 0xF]);
+        }
+        return text.toString();
+    }
+
+    private int u8(int offset) {
+        if (offset >= length) throw new IndexOutOfBoundsException(offset);
+        return buffer.get(base + offset) & 0xFF;
+    }
+
+    private int u16(int offset) {
+        if (offset + 2 > length) throw new IndexOutOfBoundsException(offset);
+        return buffer.getShort(base + offset) & 0xFFFF;
+    }
+
+    private long u32(int offset) {
+        if (offset + 4 > length) throw new IndexOutOfBoundsException(offset);
+        return buffer.getInt(base + offset) & 0xFFFFFFFFL;
+    }
+}
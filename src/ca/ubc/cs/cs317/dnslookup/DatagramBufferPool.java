@@ -0,0 +1,81 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** A pool of buffers used to send and receive DNS messages, so that the same few buffers are
+ * used for every query instead of allocating new ones each time. Buffers are direct, so the
+ * channel reads and writes them without copying through a temporary buffer.
+ *
+ * Buffers are taken with acquire and must be given back with release once the message in them
+ * is no longer needed. If the pool is empty a new buffer is created, and if it is full a
+ * released buffer is simply dropped, so the pool never blocks.
+ *
+ * The size of the buffers may be raised, so a transport advertising a larger UDP payload size
+ * (EDNS0) can receive its responses whole. Buffers of the previous size still in use are dropped
+ * when released.
+ */
+public class DatagramBufferPool {
+
+    public static final int BUFFER_SIZE = 1024;
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final DatagramBufferPool instance = new DatagramBufferPool(BUFFER_SIZE, DEFAULT_CAPACITY);
+
+    /** A reusable message buffer. */
+    public static final class Buffer {
+
+        private final ByteBuffer byteBuffer;
+
+        private Buffer(int size) {
+            byteBuffer = ByteBuffer.allocateDirect(size);
+        }
+
+        /** The byte buffer where a message is encoded or received. */
+        public ByteBuffer getByteBuffer() {
+            return byteBuffer;
+        }
+    }
+
+    private volatile int bufferSize;
+    private final ArrayBlockingQueue<Buffer> free;
+
+    /** Creates a new, empty pool.
+     *
+     * @param bufferSize Size in bytes of each buffer.
+     * @param capacity   Maximum number of unused buffers kept in the pool.
+     */
+    public DatagramBufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public static DatagramBufferPool getInstance() {
+        return instance;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Makes every buffer acquired from now on at least a given size.
+     *
+     * @param size Minimum size of the buffers, in bytes.
+     */
+    public synchronized void ensureBufferSize(int size) {
+        if (size > bufferSize) {
+            bufferSize = size;
+            free.clear();
+        }
+    }
+
+    public Buffer acquire() {
+        Buffer buffer = free.poll();
+        return buffer != null ? buffer : new Buffer(bufferSize);
+    }
+
+    public void release(Buffer buffer) {
+        if (buffer.byteBuffer.capacity() >= bufferSize)
+            free.offer(buffer);
+    }
+}
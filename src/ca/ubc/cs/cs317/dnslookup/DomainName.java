@@ -0,0 +1,315 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** A domain name in canonical form: its labels in wire format (RFC 1035, section 3.1), with
+ * ASCII letters in lowercase, so names that differ only by case are equal.
+ *
+ * A name is its first label and its parent, the name without that label, down to the root. Names
+ * are interned as they are built, from the root up, so all the names under the same domain share
+ * the same parent object, and a name seen in many records is stored once. The hash code is
+ * computed once, from the label and the hash code of the parent, so looking a name up in a hash
+ * table neither walks nor copies it.
+ *
+ * The intern table holds its names through weak references, so a name no longer used anywhere
+ * else is collected and dropped from the table, while every name still in use keeps a single
+ * instance. A label is looked up in the table before a name is built for it, so finding a name
+ * that is already interned allocates nothing. Interning is an optimization only: equality
+ * compares labels, stopping as soon as two parents are the same object. Names are ordered by
+ * their text, like the host names they replace.
+ *
+ * Labels are not validated when a name is built, so any host name typed by a user can be
+ * represented; writeTo rejects the names that cannot be sent in a query.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final DomainName ROOT = new DomainName(null, new byte[0]);
+
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /** Entry of the intern table, and its key: a weak reference to an interned name. Two entries
+     * are equal if their names are, or if they are the same entry once their names are
+     * collected, so a cleared entry can still be removed.
+     */
+    private static final class Interned extends WeakReference<DomainName> {
+
+        private final int hash;
+
+        Interned(DomainName name) {
+            super(name, collected);
+            this.hash = name.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Interned)) return false;
+            DomainName name = get();
+            return name != null && name.equals(((Interned) o).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** Key used to look a label up in the intern table without building its name. The table
+     * only ever calls equals on the key it is given, with one of its own entries.
+     */
+    private static final class Probe {
+
+        private DomainName parent;
+        private byte[] bytes;
+        private int offset;
+        private int length;
+        private int hash;
+
+        /** Sets the label to look up, or clears the probe if parent is null. */
+        Probe set(DomainName parent, byte[] bytes, int offset, int length) {
+            this.parent = parent;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int labelHash = 1;
+            for (int i = 0; i < length; i++)
+                labelHash = 31 * labelHash + toLower(bytes[offset + i]);
+            this.hash = parent == null ? 0 : 31 * parent.hash + labelHash;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            DomainName name = o instanceof Interned ? ((Interned) o).get() : null;
+            if (name == null || name.hash != hash || name.label.length != length || !name.parent.equals(parent))
+                return false;
+            for (int i = 0; i < length; i++)
+                if (name.label[i] != toLower(bytes[offset + i]))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final ReferenceQueue<DomainName> collected = new ReferenceQueue<>();
+    private static final ConcurrentMap<Object, Interned> interned = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Probe> probes = ThreadLocal.withInitial(Probe::new);
+
+    private final DomainName parent;
+    private final byte[] label;
+    private final int labelCount;
+    private final int hash;
+    private transient String text;
+
+    private DomainName(DomainName parent, byte[] label) {
+        this.parent = parent;
+        this.label = label;
+        this.labelCount = parent == null ? 0 : parent.labelCount + 1;
+        this.hash = parent == null ? 0 : 31 * parent.hash + Arrays.hashCode(label);
+    }
+
+    /** Returns the canonical form of a host name.
+     *
+     * @param hostName Host name, with or without a trailing dot.
+     * @return The interned name.
+     */
+    public static DomainName of(String hostName) {
+        int end = hostName.length();
+        if (end > 0 && hostName.charAt(end - 1) == '.')
+            end--;
+        // A dot is a single byte in UTF-8, and never part of the encoding of another character
+        byte[] bytes = hostName.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        end = bytes.length;
+        DomainName name = ROOT;
+        while (end > 0) {
+            int start = end - 1;
+            while (start >= 0 && bytes[start] != '.')
+                start--;
+            name = name.child(bytes, start + 1, end - start - 1);
+            end = start;
+        }
+        // A leading dot is an empty label, kept so the name is not mistaken for a valid one
+        if (end == 0)
+            name = name.child(bytes, 0, 0);
+        return name;
+    }
+
+    /** Returns the interned name made of a label under this name.
+     *
+     * @param bytes  Array holding the label, in any case.
+     * @param offset Offset of the label in the array.
+     * @param length Length of the label, or -1 for the rest of the array.
+     * @return The interned child name.
+     */
+    DomainName child(byte[] bytes, int offset, int length) {
+        if (length < 0)
+            length = bytes.length - offset;
+        Probe probe = probes.get();
+        Interned entry = interned.get(probe.set(this, bytes, offset, length));
+        probe.set(null, null, 0, 0);
+        DomainName existing = entry == null ? null : entry.get();
+        if (existing != null)
+            return existing;
+
+        byte[] lower = new byte[length];
+        for (int i = 0; i < length; i++)
+            lower[i] = toLower(bytes[offset + i]);
+        DomainName name = new DomainName(this, lower);
+        Interned added = new Interned(name);
+        expungeCollected();
+        while (true) {
+            entry = interned.putIfAbsent(added, added);
+            if (entry == null)
+                return name;
+            existing = entry.get();
+            if (existing != null)
+                return existing;
+            // The name of the entry found was collected after the lookup above
+            interned.remove(entry, entry);
+        }
+    }
+
+    /** Removes the entries of the intern table whose names were collected. */
+    private static void expungeCollected() {
+        for (Object entry; (entry = collected.poll()) != null; )
+            interned.remove(entry, entry);
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /** Reads a name written by writeTo, without compression, at a given position of a buffer.
+     * The position of the buffer is not changed.
+     *
+     * @param buffer Buffer holding the name.
+     * @param offset Offset of the first length byte of the name.
+     * @return The interned name.
+     */
+    static DomainName readFrom(ByteBuffer buffer, int offset) {
+        int[] starts = new int[MAX_NAME_LENGTH / 2];
+        int count = 0;
+        for (int length; (length = buffer.get(offset) & 0xFF) != 0; offset += length + 1)
+            starts[count++] = offset;
+        DomainName name = ROOT;
+        byte[] label = new byte[MAX_LABEL_LENGTH];
+        while (count > 0) {
+            int start = starts[--count];
+            int length = buffer.get(start) & 0xFF;
+            buffer.get(start + 1, label, 0, length);
+            name = name.child(label, 0, length);
+        }
+        return name;
+    }
+
+    /** The name without its first label, or null for the root. */
+    public DomainName getParent() {
+        return parent;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    /** Returns true if this name is the given name or a name under it. */
+    public boolean isSubdomainOf(DomainName other) {
+        for (DomainName name = this; name != null && name.labelCount >= other.labelCount; name = name.parent)
+            if (name.labelCount == other.labelCount)
+                return name.equals(other);
+        return false;
+    }
+
+    /** Writes the name in wire format, with its terminating empty label, without compression.
+     *
+     * @param out Buffer where the name is written.
+     * @throws IllegalArgumentException if the name has an empty label, a label longer than 63
+     *         bytes, or is longer than 255 bytes.
+     * @throws java.nio.BufferOverflowException if the name does not fit in the buffer.
+     */
+    public void writeTo(ByteBuffer out) {
+        int length = 1;
+        for (DomainName name = this; name.parent != null; name = name.parent) {
+            if (name.label.length == 0 || name.label.length > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Invalid label in name: " + this);
+            length += name.label.length + 1;
+        }
+        if (length > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name too long: " + this);
+        for (DomainName name = this; name.parent != null; name = name.parent) {
+            out.put((byte) name.label.length);
+            out.put(name.label);
+        }
+        out.put((byte) 0);
+    }
+
+    /** Writes the first label of the name, preceded by its length, for an encoder that writes
+     * the rest of the name itself (e.g., as a compression pointer). The label is not validated.
+     */
+    void writeLabelTo(ByteBuffer out) {
+        out.put((byte) label.length);
+        out.put(label);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DomainName)) return false;
+        DomainName a = this, b = (DomainName) o;
+        if (a.hash != b.hash || a.labelCount != b.labelCount) return false;
+        for (; a != b; a = a.parent, b = b.parent)
+            if (!Arrays.equals(a.label, b.label))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public int compareTo(DomainName o) {
+        int result = toString().compareTo(o.toString());
+        return result != 0 || equals(o) ? result : Integer.compare(labelCount, o.labelCount);
+    }
+
+    /** Returns the name in text form, in lowercase and without the trailing dot; the root is
+     * the empty string.
+     */
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder();
+            for (DomainName name = this; name.parent != null; name = name.parent) {
+                if (name != this)
+                    builder.append('.');
+                builder.append(new String(name.label, StandardCharsets.UTF_8));
+            }
+            text = result = builder.toString();
+        }
+        return result;
+    }
+
+    private Object readResolve() {
+        return parent == null ? ROOT : parent.child(label, 0, label.length);
+    }
+}
@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A count-min sketch that estimates how often each key was used recently, using four 4-bit
+ * counters per key packed in an array of longs. When the number of recorded uses reaches ten
+ * times the size of the table, all counters are halved, so that keys that were popular a long
+ * time ago gradually lose their advantage over keys that are popular now.
+ *
+ * This class is not thread-safe; it is meant to be used under the lock of its owner.
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85c, 0x5a2f9ed5, 0x2f0b7e1d };
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /** Creates a sketch sized for the specified number of keys.
+     *
+     * @param expectedKeys Approximate number of distinct keys the sketch should track.
+     */
+    FrequencySketch(long expectedKeys) {
+        int length = Integer.highestOneBit((int) Math.max(16, Math.min(expectedKeys, 1 << 26)) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /** Returns the estimated number of recent uses of a key, from 0 to 15.
+     *
+     * @param hash Hash code of the key.
+     * @return The estimated frequency of the key.
+     */
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xF));
+        }
+        return frequency;
+    }
+
+    /** Records one use of a key, aging all counters if the sample period is over.
+     *
+     * @param hash Hash code of the key.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = counterOffset(hash, i);
+            long mask = 0xFL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize)
+            reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        int h = (hash + SEEDS[i]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & tableMask;
+    }
+
+    /** Each long holds sixteen counters, four for each hash function. The bit offset selects
+     * one of the four counters reserved for hash function i.
+     */
+    private int counterOffset(int hash, int i) {
+        return (i << 4) + (((hash >>> (i << 3)) & 0x3) << 2);
+    }
+}
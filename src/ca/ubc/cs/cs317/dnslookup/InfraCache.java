@@ -0,0 +1,187 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/** Remembers the servers that recently failed, so that lookups skip them instead of waiting for
+ * them again (the infrastructure cache of a resolver).
+ *
+ * A server is marked unresponsive when a query sent to it gave up without a response after all
+ * its retries, and lame when it answered a query it should have been able to answer without
+ * anything useful: a server failure or a refusal, or a response that is neither an answer nor a
+ * referral to a zone closer to the name. A lame server is skipped at once, but a single timeout
+ * may come from a lost packet or a burst of queries, so a server is only skipped once it gave up
+ * on FAILURE_THRESHOLD queries in a row; any response resets its count. Either way the server is
+ * skipped until its entry expires, TTL seconds after it was last marked, and is then tried again.
+ *
+ * Skipping never leaves a zone without a server: when all the candidates are skipped, the one
+ * whose entry expires first is queried anyway, as a probe, rather than failing the lookup.
+ *
+ * Entries are kept per server address, not per zone, so a server that is lame for one zone is
+ * also skipped for the other zones it serves until its entry expires. Expired entries are removed
+ * when they are next looked up.
+ */
+public class InfraCache {
+
+    public static final long DEFAULT_TTL = 60;
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /** Reasons a server is skipped. */
+    public enum Reason {
+        /** Gave up on a query without any response. */
+        UNRESPONSIVE,
+        /** Answered with an error, or without an answer or a referral. */
+        LAME
+    }
+
+    /** A server that failed, and is skipped until its expiry time once it failed often enough. */
+    public static final class Entry {
+
+        private final Reason reason;
+        private final int failures;
+        private final long expiry;
+
+        private Entry(Reason reason, int failures, long expiry) {
+            this.reason = reason;
+            this.failures = failures;
+            this.expiry = expiry;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        /** Returns the number of failures in a row recorded for the server. */
+        public int getFailureCount() {
+            return failures;
+        }
+
+        private boolean isSkipped() {
+            return reason == Reason.LAME || failures >= FAILURE_THRESHOLD;
+        }
+
+        /** Returns the time left before the server is tried again, in milliseconds. */
+        public long getRemainingTime() {
+            return Math.max(0, expiry - System.currentTimeMillis());
+        }
+    }
+
+    private final ConcurrentMap<InetAddress, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder skipped = new LongAdder();
+    private volatile long ttl = DEFAULT_TTL;
+
+    /** Sets the time a failed server is skipped.
+     *
+     * @param seconds Time in seconds, or 0 to never skip servers.
+     */
+    public void setTtl(long seconds) {
+        this.ttl = Math.max(0, seconds);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /** Records that a server did not answer a query. */
+    public void markUnresponsive(InetAddress server) {
+        mark(server, Reason.UNRESPONSIVE);
+    }
+
+    /** Records that a server answered a query without an answer or a useful referral. */
+    public void markLame(InetAddress server) {
+        mark(server, Reason.LAME);
+    }
+
+    /** Records that a server answered a query, which resets its count of failures in a row. */
+    public void markAnswered(InetAddress server) {
+        if (!entries.isEmpty())
+            entries.computeIfPresent(server, (key, entry) -> entry.reason == Reason.UNRESPONSIVE ? null : entry);
+    }
+
+    private void mark(InetAddress server, Reason reason) {
+        if (ttl <= 0)
+            return;
+        long expiry = System.currentTimeMillis() + ttl * 1000;
+        entries.compute(server, (key, entry) -> {
+            int failures = entry == null || entry.expiry <= System.currentTimeMillis() ? 1 : entry.failures + 1;
+            return new Entry(reason, failures, expiry);
+        });
+    }
+
+    /** Returns true if a server has failed recently and should not be queried. */
+    public boolean isSkipped(InetAddress server) {
+        Entry entry = liveEntry(server);
+        return entry != null && entry.isSkipped();
+    }
+
+    /** Returns the entry of a server, or null if it has none or its entry expired. */
+    private Entry liveEntry(InetAddress server) {
+        Entry entry = entries.get(server);
+        if (entry == null)
+            return null;
+        if (entry.expiry <= System.currentTimeMillis()) {
+            entries.remove(server, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /** Returns the servers of a collection that should be queried, in the same order, and counts
+     * the ones skipped. If all of them are skipped, the one whose entry expires first is kept, so
+     * that the zone is probed instead of failing the lookup.
+     *
+     * @param servers Addresses of the candidate servers.
+     * @return A new list with the servers that have not failed recently, which is only empty if
+     *         there is no candidate.
+     */
+    public List<InetAddress> filter(Collection<InetAddress> servers) {
+        List<InetAddress> usable = new ArrayList<>(servers.size());
+        InetAddress probe = null;
+        long probeExpiry = Long.MAX_VALUE;
+        for (InetAddress server : servers) {
+            Entry entry = liveEntry(server);
+            if (entry == null || !entry.isSkipped()) {
+                usable.add(server);
+            } else {
+                skipped.increment();
+                if (entry.expiry < probeExpiry) {
+                    probe = server;
+                    probeExpiry = entry.expiry;
+                }
+            }
+        }
+        if (usable.isEmpty() && probe != null) {
+            skipped.decrement();
+            usable.add(probe);
+        }
+        return usable;
+    }
+
+    /** Returns the number of times a server was skipped because it had failed recently. */
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    /** Forgets all the servers that failed, so they are all tried again. */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Performs an action for each server currently skipped.
+     *
+     * @param consumer Action to be performed for each server address and its entry.
+     */
+    public void forEach(BiConsumer<InetAddress, Entry> consumer) {
+        entries.forEach((server, entry) -> {
+            Entry live = liveEntry(server);
+            if (live != null && live.isSkipped())
+                consumer.accept(server, live);
+        });
+    }
+}
@@ -0,0 +1,371 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A small authoritative name server on a local address, serving zones loaded by MockHierarchy,
+ * so the resolver can be run against a reproducible hierarchy of servers instead of the real
+ * root servers.
+ *
+ * The server answers over UDP and TCP (for the queries whose UDP response was truncated), on
+ * the same port. For each question it finds the deepest of its zones enclosing the name and
+ * answers as an authoritative server would: a referral (the NS records of the zone cut, with any
+ * A and AAAA records of their names found in the zone as glue) if the name is below a
+ * delegation, the records of the name (AA), a CNAME followed as far as the zone allows, NODATA or
+ * NXDOMAIN with the SOA record of the zone, or REFUSED for a name outside all its zones. Records
+ * are always served with their full TTL.
+ *
+ * Faults can be injected over UDP, to exercise the resolver deterministically: a fixed latency
+ * plus a random jitter before each response, a fraction of queries dropped without a response,
+ * and a size limit above which responses are truncated (TC). Random choices use a seeded
+ * generator, so the same queries get the same faults on every run.
+ */
+public class MockAuthority implements Closeable {
+
+    private static final int MAX_MESSAGE_LENGTH = 65535;
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    /** The records of one zone, indexed by owner name and type. */
+    static final class Zone {
+
+        private final DomainName origin;
+        private final Map<DomainName, Map<RecordType, List<ResourceRecord>>> records = new HashMap<>();
+        private final Set<DomainName> names = new HashSet<>();
+        private ResourceRecord soa;
+
+        Zone(DomainName origin) {
+            this.origin = origin;
+            names.add(origin);
+        }
+
+        DomainName getOrigin() {
+            return origin;
+        }
+
+        /** Adds a record, and marks its owner and all the names between it and the origin as
+         * existing (so empty non-terminals get NODATA rather than NXDOMAIN).
+         */
+        void add(ResourceRecord record) {
+            DomainName owner = record.getNode().getName();
+            records.computeIfAbsent(owner, name -> new EnumMap<>(RecordType.class))
+                    .computeIfAbsent(record.getType(), type -> new ArrayList<>()).add(record);
+            for (DomainName name = owner; name != null && name.isSubdomainOf(origin); name = name.getParent())
+                names.add(name);
+            if (record.getType() == RecordType.SOA && owner.equals(origin))
+                soa = record;
+        }
+
+        private List<ResourceRecord> get(DomainName name, RecordType type) {
+            Map<RecordType, List<ResourceRecord>> byType = records.get(name);
+            List<ResourceRecord> list = byType == null ? null : byType.get(type);
+            return list == null ? Collections.emptyList() : list;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double loss;
+    private final int truncateLength;
+    private final Random random;
+    private final TimerWheel delays;
+    private final Map<DomainName, Zone> zones = new HashMap<>();
+
+    private DatagramChannel udpChannel;
+    private ServerSocketChannel tcpChannel;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+
+    /**
+     * @param address        Local address and port of the server.
+     * @param latencyMillis  Delay before each UDP response, in milliseconds.
+     * @param jitterMillis   Maximum random delay added to the latency, in milliseconds.
+     * @param loss           Fraction (between 0 and 1) of UDP queries dropped.
+     * @param truncateLength Largest UDP response sent, in bytes, or 0 for the limit of the client.
+     * @param seed           Seed of the generator choosing the jitter and the queries dropped.
+     * @param delays         Timer used to send delayed responses.
+     */
+    MockAuthority(InetSocketAddress address, long latencyMillis, long jitterMillis, double loss,
+                  int truncateLength, long seed, TimerWheel delays) {
+        this.address = address;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.loss = loss;
+        this.truncateLength = truncateLength;
+        this.random = new Random(seed);
+        this.delays = delays;
+    }
+
+    /** Returns the zone with a given origin, created if the server does not serve it yet. */
+    Zone zone(DomainName origin) {
+        return zones.computeIfAbsent(origin, Zone::new);
+    }
+
+    /** Returns true if the server serves a zone with a given origin. */
+    boolean serves(DomainName origin) {
+        return zones.containsKey(origin);
+    }
+
+    public InetAddress getAddress() {
+        return address.getAddress();
+    }
+
+    /** Binds the sockets of the server and starts its daemon threads. */
+    void start() throws IOException {
+        udpChannel = DatagramChannel.open();
+        udpChannel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 22);
+        udpChannel.setOption(StandardSocketOptions.SO_SNDBUF, 1 << 22);
+        udpChannel.bind(address);
+        tcpChannel = ServerSocketChannel.open();
+        tcpChannel.bind(address);
+        startDaemon(this::receiveUdp, "dns-mock-udp-" + address.getAddress().getHostAddress());
+        startDaemon(this::acceptTcp, "dns-mock-tcp-" + address.getAddress().getHostAddress());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (udpChannel != null)
+            udpChannel.close();
+        if (tcpChannel != null)
+            tcpChannel.close();
+    }
+
+    private static void startDaemon(Runnable action, String name) {
+        Thread thread = new Thread(action, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void receiveUdp() {
+        ByteBuffer query = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+        while (udpChannel.isOpen()) {
+            SocketAddress client;
+            try {
+                query.clear();
+                client = udpChannel.receive(query);
+                query.flip();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            received.increment();
+            if (loss > 0 && random.nextDouble() < loss) {
+                dropped.increment();
+                continue;
+            }
+            ByteBuffer response = answer(query, true);
+            if (response == null)
+                continue;
+            long delay = latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+            if (delay <= 0)
+                sendUdp(response, client);
+            else
+                delays.schedule(System.currentTimeMillis() + delay, () -> sendUdp(response, client));
+        }
+    }
+
+    private void sendUdp(ByteBuffer response, SocketAddress client) {
+        try {
+            udpChannel.send(response, client);
+        } catch (IOException e) {
+            // The client retries
+        }
+    }
+
+    private void acceptTcp() {
+        while (tcpChannel.isOpen()) {
+            try {
+                SocketChannel connection = tcpChannel.accept();
+                startDaemon(() -> serveTcp(connection), "dns-mock-tcp-connection");
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /** Answers the queries of a TCP connection, each prefixed with its length, until it is closed. */
+    private void serveTcp(SocketChannel connection) {
+        try (SocketChannel channel = connection) {
+            ByteBuffer prefix = ByteBuffer.allocate(2);
+            while (true) {
+                prefix.clear();
+                if (!readFully(channel, prefix))
+                    return;
+                ByteBuffer query = ByteBuffer.allocate(prefix.getShort(0) & 0xFFFF);
+                if (!readFully(channel, query))
+                    return;
+                received.increment();
+                ByteBuffer response = answer(query.flip(), false);
+                if (response == null)
+                    return;
+                ByteBuffer message = ByteBuffer.allocate(2 + response.remaining());
+                message.putShort((short) response.remaining()).put(response).flip();
+                while (message.hasRemaining())
+                    channel.write(message);
+            }
+        } catch (IOException e) {
+            // Connection closed by the client
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                return false;
+        return true;
+    }
+
+    /** Builds the response to a query.
+     *
+     * @param query Buffer holding the query.
+     * @param udp   True if the response is sent over UDP, and limited in size.
+     * @return A new buffer holding the response, or null if the message is not a valid query.
+     */
+    private ByteBuffer answer(ByteBuffer query, boolean udp) {
+        DNSResponseParser parser;
+        int questionEnd;
+        try {
+            parser = new DNSResponseParser(query);
+            if (parser.isResponse() || parser.getQuestionCount() != 1)
+                return null;
+            questionEnd = parser.parseQuestion();
+            parser.parse();
+        } catch (IOException e) {
+            return null;
+        }
+
+        int ednsPayload = parser.getUdpPayloadSize();
+        int maxLength = !udp ? MAX_MESSAGE_LENGTH
+                : ednsPayload < 0 ? QueryEncoder.MAX_UDP_PAYLOAD : Math.max(QueryEncoder.MAX_UDP_PAYLOAD, ednsPayload);
+        if (udp && truncateLength > 0)
+            maxLength = Math.min(maxLength, truncateLength);
+
+        DomainName name = parser.getQuestionName();
+        RecordType type = RecordType.getByCode(parser.getQuestionType());
+        List<ResourceRecord> answers = new ArrayList<>();
+        List<ResourceRecord> authorities = new ArrayList<>();
+        List<ResourceRecord> additionals = new ArrayList<>();
+        int flags = 0;
+        int rcode = ResponseEncoder.RCODE_NOERROR;
+
+        Zone zone = findZone(name);
+        if (zone == null) {
+            rcode = ResponseEncoder.RCODE_REFUSED;
+        } else {
+            DomainName cut = findCut(zone, name);
+            if (cut != null) {
+                // Referral to the zone below the cut, with the addresses of its servers as glue
+                for (ResourceRecord ns : zone.get(cut, RecordType.NS)) {
+                    authorities.add(ns);
+                    DomainName target = DomainName.of(ns.getTextResult());
+                    additionals.addAll(zone.get(target, RecordType.A));
+                    additionals.addAll(zone.get(target, RecordType.AAAA));
+                }
+            } else {
+                flags = ResponseEncoder.FLAG_AA;
+                rcode = answerFromZone(zone, name, type, answers, authorities);
+            }
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(maxLength);
+        new ResponseEncoder().encode(response, query, questionEnd, name, flags, rcode, refresh(answers),
+                refresh(authorities), refresh(additionals), maxLength, ednsPayload < 0 ? 0 : maxLength);
+        if ((response.getShort(2) & 0x0200) != 0)
+            truncated.increment();
+        return response;
+    }
+
+    /** Finds the answer to a question in a zone, following CNAMEs within the zone.
+     *
+     * @return The response code.
+     */
+    private static int answerFromZone(Zone zone, DomainName name, RecordType type,
+                                      List<ResourceRecord> answers, List<ResourceRecord> authorities) {
+        for (int i = 0; i < MAX_CNAME_CHAIN; i++) {
+            List<ResourceRecord> records = zone.get(name, type);
+            if (!records.isEmpty()) {
+                answers.addAll(records);
+                return ResponseEncoder.RCODE_NOERROR;
+            }
+            List<ResourceRecord> cname = type == RecordType.CNAME ? Collections.emptyList()
+                    : zone.get(name, RecordType.CNAME);
+            if (cname.isEmpty())
+                break;
+            answers.addAll(cname);
+            name = DomainName.of(cname.get(0).getTextResult());
+            // The rest of the chain is for the resolver to follow
+            if (!name.isSubdomainOf(zone.getOrigin()) || findCut(zone, name) != null)
+                return ResponseEncoder.RCODE_NOERROR;
+        }
+        if (zone.soa != null)
+            authorities.add(zone.soa);
+        // The RCODE is that of the last name of the chain (RFC 6604)
+        return !zone.names.contains(name) ? ResponseEncoder.RCODE_NXDOMAIN : ResponseEncoder.RCODE_NOERROR;
+    }
+
+    /** Returns the deepest zone of the server enclosing a name, or null if there is none. */
+    private Zone findZone(DomainName name) {
+        for (DomainName origin = name; origin != null; origin = origin.getParent()) {
+            Zone zone = zones.get(origin);
+            if (zone != null)
+                return zone;
+        }
+        return null;
+    }
+
+    /** Returns the highest name with NS records between a name (included) and the origin of a
+     * zone (excluded), i.e. the delegation the name falls under, or null if there is none.
+     */
+    private static DomainName findCut(Zone zone, DomainName name) {
+        DomainName cut = null;
+        for (; name != null && !name.equals(zone.getOrigin()); name = name.getParent())
+            if (!zone.get(name, RecordType.NS).isEmpty())
+                cut = name;
+        return cut;
+    }
+
+    /** Returns copies of zone records with their full TTL. */
+    private static List<ResourceRecord> refresh(List<ResourceRecord> records) {
+        List<ResourceRecord> copies = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            copies.add(record.copyFor(record.getNode(), record.getOriginalTTL()));
+        return copies;
+    }
+
+    /** Returns the number of queries received, over UDP and TCP. */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /** Returns the number of UDP queries dropped on purpose. */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /** Returns the number of UDP responses truncated. */
+    public long getTruncatedCount() {
+        return truncated.sum();
+    }
+}
@@ -0,0 +1,259 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A hierarchy of MockAuthority servers on loopback addresses, loaded from a fixture written in
+ * a subset of the zone file format (RFC 1035, section 5), so that the resolver can be tested and
+ * benchmarked end to end without depending on the network, on real servers or on their caches.
+ *
+ * The fixture lists servers, each followed by the zones it serves and their records:
+ *
+ * <pre>
+ * $SERVER 127.0.0.1 latency=2 jitter=1 loss=0.1 truncate=512
+ * $ORIGIN .
+ * $TTL 86400
+ * @          SOA  a.root. hostmaster.root. 1 1800 900 604800 3600
+ * @          NS   a.root.
+ * a.root.    A    127.0.0.1
+ * test       NS   ns.test.
+ * ns.test.   A    127.0.0.2
+ * $GENERATE 1-100 host$.example.test. A 10.0.0.1
+ * </pre>
+ *
+ * All the options of a server are optional: latency and jitter are in milliseconds, loss is the
+ * fraction of UDP queries dropped, and truncate is the largest UDP response sent. Owner names
+ * are relative to the origin unless they end with a dot; "@" is the origin itself, and a line
+ * starting with a blank reuses the owner of the previous record. A record is an owner, an
+ * optional TTL, an optional IN class, a type (A, AAAA, NS, CNAME, MX or SOA) and its data.
+ * $GENERATE adds one record per number in a range, with "$" replaced by the number in the owner
+ * and the data. Comments start with ";" or "#".
+ *
+ * Delegations are written as in real zones: NS records at the zone cut in the parent zone, with
+ * glue addresses in the parent zone when the server names are under the cut. A server name
+ * whose address is only found in another zone makes a glueless delegation. The root server is
+ * the one serving the root zone ("."); every server listens on the same port.
+ */
+public class MockHierarchy implements Closeable {
+
+    public static final int DEFAULT_PORT = 5300;
+    public static final long DEFAULT_TTL = 3600;
+
+    private final int port;
+    private final long seed;
+    private final TimerWheel delays = new TimerWheel("dns-mock-delays", 1);
+    private final Map<InetAddress, MockAuthority> servers = new LinkedHashMap<>();
+    private MockAuthority root;
+
+    // State of the parser while the fixture is loaded
+    private MockAuthority server;
+    private MockAuthority.Zone zone;
+    private long defaultTtl = DEFAULT_TTL;
+    private String lastOwner;
+
+    private MockHierarchy(int port, long seed) {
+        this.port = port;
+        this.seed = seed;
+    }
+
+    /** Loads a hierarchy from a fixture. The servers are not started.
+     *
+     * @param fixture File describing the servers and their zones.
+     * @param port    Port all the servers listen on.
+     * @param seed    Seed of the random faults injected by the servers.
+     * @return The hierarchy.
+     * @throws IOException if the fixture could not be read, or is invalid.
+     */
+    public static MockHierarchy load(Path fixture, int port, long seed) throws IOException {
+        MockHierarchy hierarchy = new MockHierarchy(port, seed);
+        List<String> lines = Files.readAllLines(fixture);
+        for (int i = 0; i < lines.size(); i++) {
+            try {
+                hierarchy.parseLine(lines.get(i));
+            } catch (RuntimeException | UnknownHostException e) {
+                throw new IOException(fixture + ":" + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (hierarchy.root == null)
+            throw new IOException(fixture + ": no server for the root zone");
+        return hierarchy;
+    }
+
+    private void parseLine(String line) throws UnknownHostException {
+        line = line.split("[;#]", 2)[0];
+        if (line.isBlank())
+            return;
+        boolean continuation = Character.isWhitespace(line.charAt(0));
+        String[] fields = line.trim().split("\\s+");
+        switch (fields[0].toUpperCase()) {
+            case "$SERVER":
+                server = addServer(fields);
+                zone = null;
+                return;
+            case "$ORIGIN":
+                if (server == null)
+                    throw new IllegalArgumentException("$ORIGIN before any $SERVER");
+                zone = server.zone(fields[1].equals(".") ? DomainName.ROOT : DomainName.of(fields[1]));
+                if (zone.getOrigin().isRoot())
+                    root = server;
+                lastOwner = "@";
+                return;
+            case "$TTL":
+                defaultTtl = Long.parseLong(fields[1]);
+                return;
+            case "$GENERATE": {
+                String[] range = fields[1].split("-");
+                int start = Integer.parseInt(range[0]), stop = Integer.parseInt(range[1]);
+                for (int n = start; n <= stop; n++) {
+                    String[] record = new String[fields.length - 2];
+                    for (int j = 0; j < record.length; j++)
+                        record[j] = fields[j + 2].replace("$", Integer.toString(n));
+                    addRecord(record, false);
+                }
+                return;
+            }
+            default:
+                addRecord(fields, continuation);
+        }
+    }
+
+    private MockAuthority addServer(String[] fields) throws UnknownHostException {
+        InetAddress address = InetAddress.getByName(fields[1]);
+        if (servers.containsKey(address))
+            throw new IllegalArgumentException("Duplicate server " + fields[1]);
+        long latency = 0, jitter = 0;
+        double loss = 0;
+        int truncate = 0;
+        for (int i = 2; i < fields.length; i++) {
+            String[] option = fields[i].split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Invalid option " + fields[i]);
+            switch (option[0].toLowerCase()) {
+                case "latency": latency = Long.parseLong(option[1]); break;
+                case "jitter": jitter = Long.parseLong(option[1]); break;
+                case "loss": loss = Double.parseDouble(option[1]); break;
+                case "truncate": truncate = Integer.parseInt(option[1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + option[0]);
+            }
+        }
+        MockAuthority authority = new MockAuthority(new InetSocketAddress(address, port), latency, jitter,
+                loss, truncate, seed ^ address.hashCode(), delays);
+        servers.put(address, authority);
+        return authority;
+    }
+
+    /** Adds a record, given as its fields, to the current zone.
+     *
+     * @param fields       Owner (unless it is a continuation), TTL, class, type and data.
+     * @param continuation True if the owner is left out, and is the one of the previous record.
+     */
+    private void addRecord(String[] fields, boolean continuation) throws UnknownHostException {
+        if (zone == null)
+            throw new IllegalArgumentException("Record outside of any $ORIGIN");
+        int i = 0;
+        String owner = continuation ? lastOwner : fields[i++];
+        long ttl = defaultTtl;
+        if (i < fields.length && fields[i].chars().allMatch(Character::isDigit))
+            ttl = Long.parseLong(fields[i++]);
+        if (i < fields.length && fields[i].equalsIgnoreCase("IN"))
+            i++;
+        if (i >= fields.length)
+            throw new IllegalArgumentException("Missing record type");
+        RecordType type = RecordType.valueOf(fields[i++].toUpperCase());
+        String[] data = Arrays.copyOfRange(fields, i, fields.length);
+        DNSNode node = new DNSNode(absolute(owner), type);
+        lastOwner = owner;
+
+        switch (type) {
+            case A:
+            case AAAA:
+                zone.add(new ResourceRecord(node, ttl, InetAddress.getByName(data[0])));
+                break;
+            case NS:
+            case CNAME:
+                zone.add(new ResourceRecord(node, ttl, absolute(data[0]).toString()));
+                break;
+            case MX:
+                zone.add(new ResourceRecord(node, ttl, Integer.parseInt(data[0]) + " " + absolute(data[1])));
+                break;
+            case SOA:
+                if (data.length != 7)
+                    throw new IllegalArgumentException("SOA needs 7 fields");
+                zone.add(new ResourceRecord(node, ttl, absolute(data[0]) + " " + absolute(data[1]) + " "
+                        + String.join(" ", Arrays.copyOfRange(data, 2, 7))));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported record type " + type);
+        }
+    }
+
+    /** Returns a name from the fixture made absolute, relative to the current origin. */
+    private DomainName absolute(String name) {
+        if (name.equals("@"))
+            return zone.getOrigin();
+        if (name.equals("."))
+            return DomainName.ROOT;
+        if (name.endsWith("."))
+            return DomainName.of(name);
+        return zone.getOrigin().isRoot() ? DomainName.of(name) : DomainName.of(name + "." + zone.getOrigin());
+    }
+
+    /** Starts all the servers. */
+    public void start() throws IOException {
+        for (MockAuthority authority : servers.values())
+            authority.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MockAuthority authority : servers.values())
+            authority.close();
+    }
+
+    /** Returns the address of the server of the root zone, to start the resolution from. */
+    public InetAddress getRootServer() {
+        return root.getAddress();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Returns one line per server with the number of queries it received, dropped and truncated. */
+    public String getStatistics() {
+        StringBuilder builder = new StringBuilder();
+        for (MockAuthority authority : servers.values())
+            builder.append(String.format("%-16s %8d received %6d dropped %6d truncated%n",
+                    authority.getAddress().getHostAddress(), authority.getReceivedCount(),
+                    authority.getDroppedCount(), authority.getTruncatedCount()));
+        return builder.toString();
+    }
+
+    /** Runs a hierarchy on its own, until the process is stopped, for use by another resolver.
+     *
+     * @param args The fixture, and optionally the port and the seed.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: java -cp DNSLookupService.jar ca.ubc.cs.cs317.dnslookup.MockHierarchy fixture [port [seed]]");
+            System.exit(1);
+        }
+        MockHierarchy hierarchy = load(Paths.get(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT,
+                args.length > 2 ? Long.parseLong(args[2]) : 0);
+        hierarchy.start();
+        System.out.println("Mock hierarchy listening on port " + hierarchy.getPort() + ", root server is "
+                + hierarchy.getRootServer().getHostAddress());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(hierarchy.getStatistics())));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,829 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/** Keeps the cached records outside the Java heap, so a cache holding millions of queries does
+ * not make the heap, and the garbage collector's work, grow with it. Used by DNSCache in place
+ * of its own maps when selected at startup.
+ *
+ * The records of each query are encoded together in one block of direct memory: a header with
+ * the record type, the name in wire format (to tell apart queries with the same hash) and the
+ * latest expiration time of the records, followed by the records themselves (expiration time,
+ * original TTL, and the address or text result). Blocks have sizes in powers of two, from 64
+ * bytes to 64 KiB, and are carved from 1 MiB slabs allocated for each size as needed, up to a
+ * total memory budget. A freed block is put on the free list of its size, linked through the
+ * free blocks themselves, and reused by the next block of that size.
+ *
+ * Blocks are found through an open-addressing hash table, also in direct memory, with two longs
+ * per slot: a tag derived from the hash of the query (never 0, which marks an empty slot) and
+ * the address of the block (size, slab and offset). Collisions are resolved by linear probing,
+ * and entries are removed by shifting the following entries back, so the table never fills up
+ * with deleted markers. The table doubles when it becomes 70% full.
+ *
+ * Records are not removed when they expire, since that would need a timeout on the heap for
+ * each of them. Expired records are skipped by lookups, and the blocks whose records have all
+ * expired are reclaimed by a sweep that checks a few slots of the table on each update, and a
+ * few more when a block cannot be allocated otherwise. If the budget is still exhausted, a few
+ * blocks of the required size are sampled and the one that expires first is evicted. A size
+ * with no block to evict takes over a slab of another size instead: the slab with the fewest
+ * blocks in use among the slabs of the size that holds the most, whose entries are evicted. A
+ * query whose records do not fit in the largest block is not stored.
+ *
+ * Lookups share a read lock and updates take a write lock. Names and records are encoded in
+ * buffers of the calling thread before the lock is taken, and an update is merged with the
+ * records already stored without decoding them, in place when the block size does not change.
+ * Records are decoded into new ResourceRecord objects on every lookup; these are short-lived and
+ * cheap to collect.
+ */
+class OffHeapRecordStore {
+
+    private static final int MIN_BLOCK_SHIFT = 6;
+    private static final int MAX_BLOCK_SHIFT = 16;
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final double MAX_LOAD = 0.7;
+    private static final int SWEEP_STEP = 8;
+    private static final int ALLOCATION_SWEEP_STEP = 64;
+    private static final int EVICTION_SAMPLES = 16;
+    private static final int EVICTION_SCAN_LIMIT = 4096;
+    private static final int MAX_SLABS = 1 << 16;
+    private static final long NONE = -1;
+
+    // Block header: record type, name length, record count, state, latest expiration time. A
+    // free block keeps its state and links to the next free block in place of the expiration.
+    private static final int TYPE_OFFSET = 0;
+    private static final int NAME_LENGTH_OFFSET = 2;
+    private static final int COUNT_OFFSET = 4;
+    private static final int STATE_OFFSET = 6;
+    private static final int EXPIRY_OFFSET = 8;
+    private static final int NEXT_FREE_OFFSET = 8;
+    private static final int HEADER_LENGTH = 16;
+
+    private static final byte BLOCK_FREE = 0;
+    private static final byte BLOCK_USED = 1;
+
+    // Encoded record: expiration time, original TTL, kind, then the address, or the length of
+    // the text (-1 for none) and the text itself
+    private static final int RESULT_OFFSET = 12;
+
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IPV4 = 4;
+    private static final byte KIND_IPV6 = 6;
+
+    private static final RecordType[] TYPES = RecordType.values();
+
+    /** Buffers of a thread, reused to encode names and records and to decode text results. */
+    private static final class Scratch {
+
+        final ByteBuffer name = ByteBuffer.allocate(256);
+        ByteBuffer records = ByteBuffer.allocate(1 << MIN_BLOCK_SHIFT);
+        ByteBuffer block = ByteBuffer.allocate(1 << MIN_BLOCK_SHIFT);
+        byte[] text = new byte[256];
+        final byte[] ipv4 = new byte[4];
+        final byte[] ipv6 = new byte[16];
+
+        /** Returns a buffer with the contents of another and room for at least a given length. */
+        static ByteBuffer ensure(ByteBuffer buffer, int length) {
+            if (length <= buffer.capacity())
+                return buffer;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            larger.put(0, buffer, 0, buffer.capacity());
+            return larger;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /** A slab of direct memory, carved into blocks of a single size until it is taken over by
+     * another size.
+     */
+    private static final class Slab {
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+        int shift;
+        int live;
+
+        Slab(int shift) {
+            this.shift = shift;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Consumer<DNSNode> removalListener;
+    private final List<DNSNode> pendingRemovals = new ArrayList<>();
+    private volatile long maxBytes;
+
+    private LongBuffer index;
+    private int mask;
+    private int size;
+    private int sweepCursor;
+
+    private final List<Slab> slabs = new ArrayList<>();
+    private final long[] freeLists = new long[MAX_BLOCK_SHIFT + 1];
+    private final int[] slabCounts = new int[MAX_BLOCK_SHIFT + 1];
+    private final int[] carvedSlabs = new int[MAX_BLOCK_SHIFT + 1];
+    private final int[] slabUsed = new int[MAX_BLOCK_SHIFT + 1];
+    private long allocatedBytes;
+    private long usedBytes;
+    private long recordCount;
+
+    private long expiredCount;
+    private long evictedCount;
+
+    /**
+     * @param maxBytes        Maximum memory used by the slabs holding the records, in bytes.
+     * @param removalListener Action called with each query removed by the store itself, because
+     *                        its records expired or it was evicted. Called by the thread that
+     *                        removed it, once the write lock is released.
+     */
+    OffHeapRecordStore(long maxBytes, Consumer<DNSNode> removalListener) {
+        this.maxBytes = maxBytes;
+        this.removalListener = removalListener;
+        this.index = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 2 * Long.BYTES).asLongBuffer();
+        this.mask = INITIAL_CAPACITY - 1;
+        Arrays.fill(freeLists, NONE);
+        Arrays.fill(carvedSlabs, -1);
+    }
+
+    /** Changes the memory budget. A smaller budget is reached as blocks are reclaimed; slabs
+     * already allocated are kept.
+     */
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the records of a query that have not expired.
+     *
+     * @param node Query (host name and record type).
+     * @return A new unmodifiable set with the records, or null if the query has none.
+     */
+    Set<ResourceRecord> get(DNSNode node) {
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer name = wireName(node.getName(), scratch);
+        if (name == null) return null;
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            int slot = find(tag(node), name, node.getType());
+            if (slot < 0) return null;
+            long address = index.get(2 * slot + 1);
+            if (expiry(address) <= now) return null;
+            return decode(node, address, now, scratch);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Adds records to a query. A record already stored is replaced if the new one expires after
+     * it, as in DNSCache.addResult. Records that expired are dropped when the query is rewritten,
+     * which is only done if one of the records is new or expires later than the one stored.
+     *
+     * @param node    Query (host name and record type) of the records.
+     * @param records Records to be added.
+     */
+    void put(DNSNode node, List<ResourceRecord> records) {
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer name = wireName(node.getName(), scratch);
+        if (name == null) return;
+        int added = encodeAll(records, scratch);
+        if (added == 0) return;
+        long tag = tag(node);
+        long now = System.currentTimeMillis();
+        List<DNSNode> removed;
+        lock.writeLock().lock();
+        try {
+            sweep(now, SWEEP_STEP);
+            store(node, tag, name, added, scratch, now);
+            removed = takePendingRemovals();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (DNSNode query : removed)
+            removalListener.accept(query);
+    }
+
+    /** Merges the records encoded in the scratch buffer of the thread with those stored for a
+     * query, and stores the result. Called with the write lock held.
+     *
+     * @param added Length of the encoded records in the scratch buffer.
+     */
+    private void store(DNSNode node, long tag, ByteBuffer name, int added, Scratch scratch, long now) {
+        ByteBuffer records = scratch.records;
+        int slot = find(tag, name, node.getType());
+        long previous = slot < 0 ? NONE : index.get(2 * slot + 1);
+        int previousCount = previous == NONE ? 0 : count(previous);
+
+        // New records, or the stored ones if they expire later, then the other stored records
+        ByteBuffer out = scratch.block = Scratch.ensure(scratch.block, HEADER_LENGTH + name.limit() + added
+                + (previous == NONE ? 0 : 1 << shift(previous)));
+        int length = HEADER_LENGTH + name.limit();
+        int count = 0;
+        long latest = 0;
+        boolean changed = previous == NONE;
+        for (int position = 0; position < added; position += recordLength(records, position)) {
+            int stored = previous == NONE ? -1 : findRecord(previous, records, position, now);
+            ByteBuffer source = records;
+            int start = position;
+            if (stored < 0 || block(previous).getLong(stored) < records.getLong(position))
+                changed = true;
+            else {
+                source = block(previous);
+                start = stored;
+            }
+            int recordLength = recordLength(source, start);
+            out.put(length, source, start, recordLength);
+            latest = Math.max(latest, source.getLong(start));
+            length += recordLength;
+            count++;
+        }
+        if (!changed) return;
+        if (previous != NONE) {
+            ByteBuffer block = block(previous);
+            int position = offset(previous) + HEADER_LENGTH + nameLength(previous);
+            for (int i = 0; i < previousCount; i++) {
+                int recordLength = recordLength(block, position);
+                if (block.getLong(position) > now && findRecord(records, added, block, position) < 0) {
+                    out.put(length, block, position, recordLength);
+                    latest = Math.max(latest, block.getLong(position));
+                    length += recordLength;
+                    count++;
+                }
+                position += recordLength;
+            }
+        }
+        out.putShort(TYPE_OFFSET, (short) node.getType().ordinal());
+        out.putShort(NAME_LENGTH_OFFSET, (short) name.limit());
+        out.putShort(COUNT_OFFSET, (short) count);
+        out.put(STATE_OFFSET, BLOCK_USED);
+        out.putLong(EXPIRY_OFFSET, latest);
+        out.put(HEADER_LENGTH, name, 0, name.limit());
+
+        int shift = Math.max(MIN_BLOCK_SHIFT, 32 - Integer.numberOfLeadingZeros(length - 1));
+        if (previous != NONE && shift(previous) == shift) {
+            block(previous).put(offset(previous), out, 0, length);
+            recordCount += count - previousCount;
+            return;
+        }
+        if (slot >= 0)
+            removeSlot(slot, false);
+        long address = shift > MAX_BLOCK_SHIFT ? NONE : allocate(shift, now);
+        if (address == NONE) {
+            evictedCount += count;
+            if (previous != NONE)
+                pendingRemovals.add(node);
+            return;
+        }
+        block(address).put(offset(address), out, 0, length);
+        insert(tag, address);
+        recordCount += count;
+    }
+
+    /** Returns the queries removed by the store itself since the last call, to be given to the
+     * removal listener once the write lock is released.
+     */
+    private List<DNSNode> takePendingRemovals() {
+        if (pendingRemovals.isEmpty())
+            return Collections.emptyList();
+        List<DNSNode> removed = new ArrayList<>(pendingRemovals);
+        pendingRemovals.clear();
+        return removed;
+    }
+
+    /** Performs an action for each query with records that have not expired, in no particular
+     * order. The action is called with the read lock held, so it must not update the store.
+     *
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    void forEach(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        Scratch scratch = SCRATCH.get();
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot <= mask; slot++) {
+                if (index.get(2 * slot) == 0) continue;
+                long address = index.get(2 * slot + 1);
+                DNSNode node = nodeOf(address);
+                Set<ResourceRecord> records = decode(node, address, now, scratch);
+                if (records != null)
+                    consumer.accept(node, records);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of queries stored, including those whose records expired but were not
+     * reclaimed yet.
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of records stored, including expired records not reclaimed yet. */
+    long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the memory used by the blocks in use, in bytes. */
+    long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the memory allocated for slabs and for the hash table, in bytes. */
+    long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocatedBytes + (long) index.capacity() * Long.BYTES;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of records reclaimed after they expired. */
+    long getExpiredCount() {
+        lock.readLock().lock();
+        try {
+            return expiredCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the number of records evicted to make room for others, or dropped because they
+     * could not be stored.
+     */
+    long getEvictedCount() {
+        lock.readLock().lock();
+        try {
+            return evictedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the slot of a query in the hash table, or -1 if it is not stored. */
+    private int find(long tag, ByteBuffer name, RecordType type) {
+        for (int slot = (int) tag & mask; ; slot = (slot + 1) & mask) {
+            long current = index.get(2 * slot);
+            if (current == 0)
+                return -1;
+            if (current == tag && matches(index.get(2 * slot + 1), name, type))
+                return slot;
+        }
+    }
+
+    private boolean matches(long address, ByteBuffer name, RecordType type) {
+        ByteBuffer block = block(address);
+        int position = offset(address);
+        if (block.getShort(position + TYPE_OFFSET) != type.ordinal()
+                || block.getShort(position + NAME_LENGTH_OFFSET) != name.limit())
+            return false;
+        return equalBytes(block, position + HEADER_LENGTH, name, 0, name.limit());
+    }
+
+    /** Returns the slot of the entry with a given block, or -1 if there is none. */
+    private int slotOf(long address) {
+        for (int slot = (int) tag(nodeOf(address)) & mask; ; slot = (slot + 1) & mask) {
+            if (index.get(2 * slot) == 0)
+                return -1;
+            if (index.get(2 * slot + 1) == address)
+                return slot;
+        }
+    }
+
+    private void insert(long tag, long address) {
+        if (size + 1 > (mask + 1) * MAX_LOAD)
+            grow();
+        int slot = (int) tag & mask;
+        while (index.get(2 * slot) != 0)
+            slot = (slot + 1) & mask;
+        index.put(2 * slot, tag);
+        index.put(2 * slot + 1, address);
+        size++;
+    }
+
+    private void grow() {
+        LongBuffer old = index;
+        int oldCapacity = mask + 1;
+        index = ByteBuffer.allocateDirect(oldCapacity * 4 * Long.BYTES).asLongBuffer();
+        mask = oldCapacity * 2 - 1;
+        size = 0;
+        for (int slot = 0; slot < oldCapacity; slot++)
+            if (old.get(2 * slot) != 0)
+                insert(old.get(2 * slot), old.get(2 * slot + 1));
+    }
+
+    /** Removes the entry in a slot and frees its block, then moves back the entries that follow
+     * it in the same probe sequence, so that none of them is left behind an empty slot.
+     *
+     * @param slot   Slot of the entry.
+     * @param notify True to call the removal listener with the query of the entry, once the
+     *               write lock is released.
+     */
+    private void removeSlot(int slot, boolean notify) {
+        long address = index.get(2 * slot + 1);
+        if (notify)
+            pendingRemovals.add(nodeOf(address));
+        recordCount -= count(address);
+        free(address);
+
+        int hole = slot;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long tag = index.get(2 * next);
+            if (tag == 0)
+                break;
+            int home = (int) tag & mask;
+            // The entry can move to the hole unless its home slot lies after the hole
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                index.put(2 * hole, tag);
+                index.put(2 * hole + 1, index.get(2 * next + 1));
+                hole = next;
+            }
+        }
+        index.put(2 * hole, 0);
+        index.put(2 * hole + 1, 0);
+        size--;
+    }
+
+    /** Checks a number of slots from the sweep cursor, and removes the entries whose records
+     * have all expired.
+     */
+    private void sweep(long now, int slots) {
+        for (int checked = 0; checked < slots && size > 0; ) {
+            int slot = sweepCursor & mask;
+            long address = index.get(2 * slot + 1);
+            if (index.get(2 * slot) != 0 && expiry(address) <= now) {
+                expiredCount += count(address);
+                // Another entry may have been moved into the slot, so it is checked again
+                removeSlot(slot, true);
+            } else {
+                sweepCursor++;
+                checked++;
+            }
+        }
+    }
+
+    /** Returns a free block of a given size, reusing a freed block, carving a new one from a
+     * slab, reclaiming a few expired blocks, evicting a block of that size, or taking over a slab
+     * of another size, in that order.
+     *
+     * @return The address of the block, or NONE if none could be found.
+     */
+    private long allocate(int shift, long now) {
+        long address = takeBlock(shift);
+        if (address != NONE)
+            return address;
+        sweep(now, ALLOCATION_SWEEP_STEP);
+        address = takeBlock(shift);
+        if (address != NONE)
+            return address;
+        if (evict(shift) || reclaimSlab(shift))
+            return takeBlock(shift);
+        return NONE;
+    }
+
+    private long takeBlock(int shift) {
+        int blockSize = 1 << shift;
+        long address = freeLists[shift];
+        if (address != NONE) {
+            freeLists[shift] = block(address).getLong(offset(address) + NEXT_FREE_OFFSET);
+        } else {
+            if (carvedSlabs[shift] < 0 || slabUsed[shift] + blockSize > SLAB_SIZE) {
+                if (allocatedBytes + SLAB_SIZE > maxBytes || slabs.size() >= MAX_SLABS)
+                    return NONE;
+                slabs.add(new Slab(shift));
+                allocatedBytes += SLAB_SIZE;
+                slabCounts[shift]++;
+                carvedSlabs[shift] = slabs.size() - 1;
+                slabUsed[shift] = 0;
+            }
+            address = address(shift, carvedSlabs[shift], slabUsed[shift]);
+            slabUsed[shift] += blockSize;
+        }
+        slabs.get(slab(address)).live++;
+        usedBytes += blockSize;
+        return address;
+    }
+
+    private void free(long address) {
+        int shift = shift(address);
+        ByteBuffer block = block(address);
+        block.put(offset(address) + STATE_OFFSET, BLOCK_FREE);
+        block.putLong(offset(address) + NEXT_FREE_OFFSET, freeLists[shift]);
+        freeLists[shift] = address;
+        slabs.get(slab(address)).live--;
+        usedBytes -= 1 << shift;
+    }
+
+    /** Takes over a slab of another size for blocks of a given size, when the budget allows no
+     * new slab and no block of that size can be evicted: among the slabs of the size holding the
+     * most, the one with the fewest blocks in use. The entries of its blocks are evicted, and its
+     * free blocks are taken off the free list of their size.
+     *
+     * @return True if a slab was taken over.
+     */
+    private boolean reclaimSlab(int shift) {
+        int victim = -1;
+        for (int id = 0; id < slabs.size(); id++) {
+            Slab slab = slabs.get(id);
+            if (slab.shift == shift)
+                continue;
+            Slab best = victim < 0 ? null : slabs.get(victim);
+            if (best == null || slabCounts[slab.shift] > slabCounts[best.shift]
+                    || slabCounts[slab.shift] == slabCounts[best.shift] && slab.live < best.live)
+                victim = id;
+        }
+        if (victim < 0)
+            return false;
+
+        Slab slab = slabs.get(victim);
+        int from = slab.shift;
+        int end = carvedSlabs[from] == victim ? slabUsed[from] : SLAB_SIZE;
+        for (int offset = 0; offset < end && slab.live > 0; offset += 1 << from) {
+            long address = address(from, victim, offset);
+            if (slab.buffer.get(offset + STATE_OFFSET) != BLOCK_USED)
+                continue;
+            int slot = slotOf(address);
+            if (slot >= 0) {
+                evictedCount += count(address);
+                removeSlot(slot, true);
+            }
+        }
+        if (slab.live > 0)
+            return false;
+        long kept = NONE;
+        for (long address = freeLists[from], next; address != NONE; address = next) {
+            next = block(address).getLong(offset(address) + NEXT_FREE_OFFSET);
+            if (slab(address) != victim) {
+                block(address).putLong(offset(address) + NEXT_FREE_OFFSET, kept);
+                kept = address;
+            }
+        }
+        freeLists[from] = kept;
+        if (carvedSlabs[from] == victim)
+            carvedSlabs[from] = -1;
+        slabCounts[from]--;
+
+        slab.shift = shift;
+        slabCounts[shift]++;
+        carvedSlabs[shift] = victim;
+        slabUsed[shift] = 0;
+        return true;
+    }
+
+    /** Evicts, among a sample of the entries with blocks of a given size, the one whose records
+     * expire first.
+     *
+     * @return True if an entry was evicted.
+     */
+    private boolean evict(int shift) {
+        int start = ThreadLocalRandom.current().nextInt(mask + 1);
+        int best = -1;
+        long bestExpiry = Long.MAX_VALUE;
+        int samples = 0;
+        for (int i = 0; i < EVICTION_SCAN_LIMIT && i <= mask && samples < EVICTION_SAMPLES; i++) {
+            int slot = (start + i) & mask;
+            if (index.get(2 * slot) == 0 || shift(index.get(2 * slot + 1)) != shift)
+                continue;
+            samples++;
+            long expiry = expiry(index.get(2 * slot + 1));
+            if (expiry < bestExpiry) {
+                best = slot;
+                bestExpiry = expiry;
+            }
+        }
+        if (best < 0)
+            return false;
+        long address = index.get(2 * best + 1);
+        evictedCount += count(address);
+        removeSlot(best, true);
+        return true;
+    }
+
+    /** Decodes the records of a block that have not expired, for a given node.
+     *
+     * @return A new unmodifiable set with the records, or null if they all expired.
+     */
+    private Set<ResourceRecord> decode(DNSNode node, long address, long now, Scratch scratch) {
+        ByteBuffer block = block(address);
+        int position = offset(address);
+        int count = block.getShort(position + COUNT_OFFSET);
+        position += HEADER_LENGTH + block.getShort(position + NAME_LENGTH_OFFSET);
+        ResourceRecord[] records = new ResourceRecord[count];
+        int valid = 0;
+        for (int i = 0; i < count; i++) {
+            long expirationTime = block.getLong(position);
+            if (expirationTime > now) {
+                int originalTTL = block.getInt(position + 8);
+                byte kind = block.get(position + 12);
+                String text = null;
+                byte[] bytes = null;
+                if (kind == KIND_TEXT) {
+                    int length = block.getInt(position + 13);
+                    if (length >= 0) {
+                        if (length > scratch.text.length)
+                            scratch.text = new byte[length];
+                        block.get(position + 17, scratch.text, 0, length);
+                        text = new String(scratch.text, 0, length, StandardCharsets.UTF_8);
+                    }
+                } else {
+                    // Addresses are copied into the record, so the buffers can be reused
+                    bytes = kind == KIND_IPV4 ? scratch.ipv4 : scratch.ipv6;
+                    block.get(position + RESULT_OFFSET + 1, bytes);
+                }
+                records[valid++] = new ResourceRecord(node, expirationTime, originalTTL, text, bytes);
+            }
+            position += recordLength(block, position);
+        }
+        // The records of a block are all different, as merged by store
+        if (valid == 0)
+            return null;
+        return Set.of(valid == count ? records : Arrays.copyOf(records, valid));
+    }
+
+    /** Encodes records in the scratch buffer of the thread, leaving out those with the same
+     * result as an earlier one unless they expire later, in which case they replace it.
+     *
+     * @return The length of the encoded records.
+     */
+    private static int encodeAll(List<ResourceRecord> records, Scratch scratch) {
+        int length = 0;
+        for (ResourceRecord record : records) {
+            scratch.records = Scratch.ensure(scratch.records, length + encodedLength(record));
+            ByteBuffer buffer = scratch.records;
+            int end = encode(buffer, length, record);
+            int same = findRecord(buffer, length, buffer, length);
+            if (same < 0)
+                length = end;
+            else if (buffer.getLong(same) < record.getExpirationTime())
+                buffer.put(same, buffer, length, RESULT_OFFSET);
+        }
+        return length;
+    }
+
+    private static int encodedLength(ResourceRecord record) {
+        byte[] address = record.getAddress();
+        if (address != null)
+            return 13 + address.length;
+        String text = record.getTextResult();
+        return 17 + (text == null ? 0 : text.length() * 3);
+    }
+
+    private static int encode(ByteBuffer block, int position, ResourceRecord record) {
+        byte[] address = record.getAddress();
+        block.putLong(position, record.getExpirationTime());
+        block.putInt(position + 8, (int) record.getOriginalTTL());
+        block.put(position + 12, address == null ? KIND_TEXT : address.length == 4 ? KIND_IPV4 : KIND_IPV6);
+        position += 13;
+        if (address == null) {
+            String text = record.getTextResult();
+            byte[] bytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+            block.putInt(position, bytes == null ? -1 : bytes.length);
+            position += 4;
+            if (bytes != null) {
+                block.put(position, bytes);
+                position += bytes.length;
+            }
+        } else {
+            block.put(position, address);
+            position += address.length;
+        }
+        return position;
+    }
+
+    /** Returns the length of the encoded record at a position of a buffer. */
+    private static int recordLength(ByteBuffer buffer, int position) {
+        byte kind = buffer.get(position + RESULT_OFFSET);
+        if (kind == KIND_IPV4)
+            return 13 + 4;
+        if (kind == KIND_IPV6)
+            return 13 + 16;
+        return 17 + Math.max(0, buffer.getInt(position + 13));
+    }
+
+    /** Returns true if two encoded records have the same result, whatever their expiration. */
+    private static boolean sameResult(ByteBuffer a, int positionA, ByteBuffer b, int positionB) {
+        int length = recordLength(a, positionA);
+        return recordLength(b, positionB) == length
+                && equalBytes(a, positionA + RESULT_OFFSET, b, positionB + RESULT_OFFSET, length - RESULT_OFFSET);
+    }
+
+    private static boolean equalBytes(ByteBuffer a, int positionA, ByteBuffer b, int positionB, int length) {
+        for (int i = 0; i < length; i++)
+            if (a.get(positionA + i) != b.get(positionB + i))
+                return false;
+        return true;
+    }
+
+    /** Returns the position of the first of the records encoded before a given length of a
+     * buffer that has the same result as a record, or -1 if there is none.
+     */
+    private static int findRecord(ByteBuffer records, int length, ByteBuffer record, int position) {
+        for (int start = 0; start < length; start += recordLength(records, start))
+            if (sameResult(records, start, record, position))
+                return start;
+        return -1;
+    }
+
+    /** Returns the position, in its slab, of the record of a block that has the same result as
+     * a record and has not expired, or -1 if there is none.
+     */
+    private int findRecord(long address, ByteBuffer record, int position, long now) {
+        ByteBuffer block = block(address);
+        int start = offset(address) + HEADER_LENGTH + nameLength(address);
+        for (int i = count(address); i > 0; i--) {
+            if (block.getLong(start) > now && sameResult(block, start, record, position))
+                return start;
+            start += recordLength(block, start);
+        }
+        return -1;
+    }
+
+    /** Rebuilds the query of a block from its name and record type. */
+    private DNSNode nodeOf(long address) {
+        ByteBuffer block = block(address);
+        int position = offset(address);
+        return new DNSNode(DomainName.readFrom(block, position + HEADER_LENGTH),
+                TYPES[block.getShort(position + TYPE_OFFSET)]);
+    }
+
+    private long expiry(long address) {
+        return block(address).getLong(offset(address) + EXPIRY_OFFSET);
+    }
+
+    private int count(long address) {
+        return block(address).getShort(offset(address) + COUNT_OFFSET);
+    }
+
+    private int nameLength(long address) {
+        return block(address).getShort(offset(address) + NAME_LENGTH_OFFSET);
+    }
+
+    private ByteBuffer block(long address) {
+        return slabs.get(slab(address)).buffer;
+    }
+
+    private static long address(int shift, int slab, int offset) {
+        return (long) shift << 48 | (long) slab << 32 | offset;
+    }
+
+    private static int shift(long address) {
+        return (int) (address >>> 48);
+    }
+
+    private static int slab(long address) {
+        return (int) (address >>> 32) & 0xFFFF;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /** Returns a tag for the hash table: a mix of the hash code of the query, never 0. */
+    private static long tag(DNSNode node) {
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return h == 0 ? 1 : h;
+    }
+
+    /** Returns the name in wire format, in the scratch buffer of the thread up to its limit, or
+     * null if it cannot be written (such a name is never the subject of a response).
+     */
+    private static ByteBuffer wireName(DomainName name, Scratch scratch) {
+        ByteBuffer buffer = scratch.name;
+        buffer.clear();
+        try {
+            name.writeTo(buffer);
+        } catch (IllegalArgumentException | BufferOverflowException e) {
+            return null;
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,74 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Encodes DNS queries in wire format (RFC 1035, section 4) directly into a byte buffer, which
+ * may be a heap or a direct buffer and is meant to be reused for every query.
+ *
+ * The name queried is written from the canonical DomainName of the node, whose labels are
+ * already kept in wire format, so encoding a query only copies bytes and does not allocate
+ * anything. Names are sent in lowercase.
+ *
+ * A query may carry an EDNS0 OPT pseudo-record (RFC 6891) in its additional section, which
+ * tells the server the size of the largest UDP response the client can receive, so responses
+ * longer than the 512 bytes of RFC 1035 are not truncated.
+ */
+public class QueryEncoder {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int CLASS_IN = 1;
+    public static final int TYPE_OPT = 41;
+    public static final int MAX_UDP_PAYLOAD = 512;
+    public static final int MAX_QUERY_LENGTH = HEADER_LENGTH + 255 + 4 + 11;
+
+    /** Writes a query with a single question into a buffer. The buffer is cleared first, and is
+     * flipped when done, so it is ready to be sent (position 0, limit at the end of the query).
+     *
+     * @param out   Buffer where the query is written.
+     * @param id    Query ID.
+     * @param flags Second 16-bit word of the header (QR, OPCODE, AA, TC, RD, RA, Z and RCODE).
+     * @param node  Host name and record type queried.
+     * @return The length of the query in bytes.
+     * @throws IllegalArgumentException if the host name is not a valid domain name.
+     * @throws java.nio.BufferOverflowException if the query does not fit in the buffer.
+     */
+    public static int encode(ByteBuffer out, int id, int flags, DNSNode node) {
+        return encode(out, id, flags, node, 0);
+    }
+
+    /** Writes a query with a single question and, if a UDP payload size is given, an EDNS0 OPT
+     * record into a buffer. The buffer is cleared first, and is flipped when done.
+     *
+     * @param out            Buffer where the query is written.
+     * @param id             Query ID.
+     * @param flags          Second 16-bit word of the header.
+     * @param node           Host name and record type queried.
+     * @param udpPayloadSize Largest UDP response the client accepts, advertised in the OPT
+     *                       record, or 0 to send a plain query without one.
+     * @return The length of the query in bytes.
+     * @throws IllegalArgumentException if the host name is not a valid domain name.
+     * @throws java.nio.BufferOverflowException if the query does not fit in the buffer.
+     */
+    public static int encode(ByteBuffer out, int id, int flags, DNSNode node, int udpPayloadSize) {
+        boolean edns = udpPayloadSize > 0;
+        out.clear();
+        out.putShort((short) id);
+        out.putShort((short) flags);
+        out.putShort((short) 1); // QDCOUNT
+        out.putShort((short) 0); // ANCOUNT
+        out.putShort((short) 0); // NSCOUNT
+        out.putShort((short) (edns ? 1 : 0)); // ARCOUNT
+        node.getName().writeTo(out);
+        out.putShort((short) node.getType().getCode());
+        out.putShort((short) CLASS_IN);
+        if (edns) {
+            out.put((byte) 0); // Root name
+            out.putShort((short) TYPE_OPT);
+            out.putShort((short) Math.max(MAX_UDP_PAYLOAD, Math.min(udpPayloadSize, 0xFFFF)));
+            out.putInt(0); // Extended RCODE, version 0, no flags
+            out.putShort((short) 0); // No options
+        }
+        out.flip();
+        return out.limit();
+    }
+}
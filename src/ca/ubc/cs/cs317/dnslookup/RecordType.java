@@ -1,5 +1,7 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.util.Arrays;
+
 /** Record types supported by the application. Includes a few common record types that are not
  * fully supported by this application.
  */
@@ -8,6 +10,15 @@ public enum RecordType {
 
     private int code;
 
+    private static final RecordType[] BY_CODE = new RecordType[256];
+
+    static {
+        Arrays.fill(BY_CODE, OTHER);
+        for (RecordType type : values())
+            if (type != OTHER)
+                BY_CODE[type.code] = type;
+    }
+
     RecordType(int code) {
         this.code = code;
     }
@@ -23,9 +34,8 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        for (RecordType type : values())
-            if (type.code == code)
-                return type;
-        return OTHER;
+        if (code < 0 || code >= BY_CODE.length)
+            return OTHER;
+        return BY_CODE[code];
     }
 }
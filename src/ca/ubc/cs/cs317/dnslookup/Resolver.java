@@ -0,0 +1,820 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Resolves host names iteratively, starting from a root server, and stores the results in the
+ * DNS cache. Each resolver carries its own configuration (root server, transport, tracing and
+ * serve-stale deadline), so several resolvers may be used in the same application.
+ *
+ * Resolution is asynchronous: resolveAsync returns immediately with a future, and each step of
+ * the resolution (the next query to send, the next name server to look up, the CNAME to follow)
+ * is started when the response to the previous query arrives. The progress of each lookup is
+ * kept in an explicit state machine (Resolution) rather than on the stack, so no thread waits for
+ * a response, any number of lookups may be in progress at the same time, and runaway lookups are
+ * stopped by a limit on the number of queries and on the depth of CNAME chains and name server
+ * lookups. Callbacks run on the thread of the transport that received the response, and should
+ * not block.
+ *
+ * Identical work is only done once (single-flight). A lookup for a node that is already being
+ * resolved, by any caller, waits for the resolution in progress instead of starting its own, and
+ * a query for a node that was already sent to the same server, and not answered yet, shares the
+ * response of that query. Each resolution in progress records the one it is waiting for, so a
+ * lookup that would end up waiting for itself (as with name servers whose addresses can only be
+ * found through each other) fails instead of joining.
+ *
+ * When a zone has several name servers, queries are hedged: the query goes to the server
+ * expected to answer first, and if it has not answered within a delay derived from its recent
+ * round-trip times (its smoothed RTT plus four deviations, a high percentile of its RTT), the
+ * same question is also sent to the next best server. The first response wins. The number of
+ * hedged queries in progress at the same time is limited. The candidates of a zone are all the
+ * addresses of its name servers, IPv4 and IPv6, given as glue in the referral or found in the
+ * cache.
+ *
+ * Servers that do not answer, or answer without anything useful (lame servers), are recorded in
+ * an infrastructure cache (InfraCache). The lookup that found them fails over to the other
+ * servers of the zone, and later lookups skip lame servers, and servers that gave up on several
+ * queries in a row, until their entry expires, unless no other server of the zone is left.
+ */
+public class Resolver implements Closeable {
+
+    public static final int MAX_INDIRECTION_LEVEL = 10;
+    public static final int DEFAULT_MAX_QUERIES = 100;
+    public static final int DEFAULT_MAX_HEDGES = 16;
+    private static final long INITIAL_HEDGE_DELAY = 200;
+    private static final long MIN_HEDGE_DELAY = 10;
+    private static final long HEDGE_TICK_MILLIS = 5;
+
+    /** Steps of a resolution. */
+    private enum State {
+        /** Ready to send a query for the current name to the current server. */
+        QUERY,
+        /** Suspended until the response to a query arrives. */
+        AWAIT_RESPONSE,
+        /** Suspended until the address of a name server (a referral without glue) is found. */
+        AWAIT_NAME_SERVER,
+        /** Ready to follow the CNAME of the current name. */
+        FOLLOW_CNAME,
+        /** No more queries needed. */
+        DONE
+    }
+
+    /** The state of the resolution of one node, kept on the heap so that it can be suspended
+     * while waiting for a network event and resumed, on any thread, once it happens.
+     *
+     * A resolution holds the name currently being resolved, which changes as CNAMEs are
+     * followed, the server it is currently delegated to, and the operation it is waiting for.
+     * Lookups of name server addresses are separate resolutions, one level deeper, that share
+     * the query budget of the resolution that started them. The budget limits the number of
+     * queries sent for a lookup as a whole, and the depth limits how many CNAMEs and nested
+     * name server lookups it may go through.
+     *
+     * A resolution is shared by all lookups of the same node while it is in progress. It also
+     * records the resolution it is waiting for, so a lookup that would end up waiting for
+     * itself is detected.
+     */
+    private final class Resolution {
+
+        private final DNSNode node;
+        private final AtomicInteger budget;
+        private final boolean prefetch;
+        private final CompletableFuture<Set<ResourceRecord>> results = new CompletableFuture<>();
+
+        private State state = State.QUERY;
+        private DNSNode current;
+        private List<InetAddress> servers;
+        private int depth;
+        private long aliasTtl = Long.MAX_VALUE;
+        private CompletableFuture<DNSQuery> response;
+        private CompletableFuture<Set<ResourceRecord>> nameServer;
+
+        // Resolution this one is currently waiting for, if any; guarded by the resolutions map
+        private Resolution blockedOn;
+
+        /**
+         * @param node     Host name and record type to be resolved.
+         * @param budget   Number of queries that may still be sent, shared with the resolutions
+         *                 this one is part of.
+         * @param depth    Number of CNAMEs and name server lookups that led to this resolution.
+         * @param prefetch True if the resolution refreshes cached records, which are then read
+         *                 back without counting as a hit: lookups that join it still get them.
+         */
+        Resolution(DNSNode node, AtomicInteger budget, int depth, boolean prefetch) {
+            this.node = node;
+            this.current = node;
+            this.budget = budget;
+            this.depth = depth;
+            this.prefetch = prefetch;
+        }
+
+        /** Starts the resolution from the closest name server found in the cache. */
+        void start() {
+            servers = closestServers(current);
+            advance();
+        }
+
+        /**
+         * Runs the state machine until the resolution has to wait for a network event or is
+         * done. Operations that are already complete are handled without suspending.
+         */
+        private void advance() {
+            while (true) {
+                switch (state) {
+                    case QUERY:
+                        if (servers.isEmpty()) {
+                            state = State.DONE;
+                            break;
+                        }
+                        if (budget.getAndDecrement() <= 0) {
+                            System.err.println("\n" + "---> Too many queries");
+                            state = State.DONE;
+                            break;
+                        }
+                        response = sendHedged(current, servers);
+                        state = State.AWAIT_RESPONSE;
+                        break;
+
+                    case AWAIT_RESPONSE:
+                        if (!response.isDone()) {
+                            response.whenComplete((query, error) -> advance());
+                            return;
+                        }
+                        onResponse(response.isCompletedExceptionally() ? null : response.join());
+                        break;
+
+                    case AWAIT_NAME_SERVER:
+                        if (!nameServer.isDone()) {
+                            nameServer.whenComplete((addresses, error) -> advance());
+                            return;
+                        }
+                        onNameServer(nameServer.isCompletedExceptionally()
+                                ? Collections.emptySet() : nameServer.join());
+                        break;
+
+                    case FOLLOW_CNAME:
+                        followCname();
+                        break;
+
+                    case DONE:
+                        finish();
+                        return;
+                }
+            }
+        }
+
+        /** Handles the response to the query for the current name. */
+        private void onResponse(DNSQuery query) {
+            if (query == null || !query.isAnswered()) {
+                // The servers that gave up are already in the infrastructure cache
+                failOver(query == null ? servers.get(0) : query.recievServer);
+                return;
+            }
+            if (query.answer.isNegativeAnswer()) {
+                // NXDOMAIN or NODATA: remember it so the name is not resolved again from the root
+                cache.addNegativeResult(current, query.answer.getNegativeTTL(), query.answer.isNameError(),
+                        query.answer.getSOA());
+                addAliasNegativeResult(query.answer.getNegativeTTL(), query.answer.isNameError(),
+                        query.answer.getSOA());
+                state = State.DONE;
+                return;
+            }
+            if (query.answer.AA == 1 || query.answer.ANCOUNT > 0 || query.answer.isNameError()) {
+                state = query.answer.cname == 1 ? State.FOLLOW_CNAME : State.DONE;
+                return;
+            }
+            if (isLame(query.answer)) {
+                infraCache.markLame(query.recievServer);
+                failOver(query.recievServer);
+                return;
+            }
+
+            List<ResourceRecord> glue = referralGlue(query.answer);
+            if (!glue.isEmpty()) {
+                // Referral with glue: choose among all the addresses provided
+                servers = rankServers(glue);
+                state = State.QUERY;
+                return;
+            }
+            ResourceRecord next = null;
+            for (ResourceRecord record : query.answer.authorities)
+                if (next == null && record.getType() == RecordType.NS)
+                    next = record;
+            // Referral without glue: resolve the name server first
+            if (depth >= maxDepth) {
+                System.err.println("Maximum number of indirection levels reached.");
+                state = State.DONE;
+                return;
+            }
+            nameServer = getResults(new DNSNode(next.getTextResult(), RecordType.A), this);
+            state = State.AWAIT_NAME_SERVER;
+        }
+
+        /** Continues with the other servers of the zone after a server failed, if any are left. */
+        private void failOver(InetAddress failed) {
+            List<InetAddress> remaining = new ArrayList<>(servers);
+            remaining.remove(failed);
+            servers = infraCache.filter(remaining);
+            state = State.QUERY;
+        }
+
+        /** Continues with the addresses found for a name server. */
+        private void onNameServer(Set<ResourceRecord> addresses) {
+            servers = rankServers(addresses);
+            state = State.QUERY;
+        }
+
+        /**
+         * Follows the CNAME of the current name. If the records of the canonical name, or a
+         * negative result for it, are cached, the resolution is done; otherwise the canonical
+         * name becomes the current name, and is resolved from its closest name server unless it
+         * is itself an alias found in the cache.
+         */
+        private void followCname() {
+            ResourceRecord cname = chooseARecord(cache.getCachedResults(new DNSNode(current.getHostName(), RecordType.CNAME)));
+            if (cname == null) {
+                state = State.DONE;
+                return;
+            }
+            if (depth >= maxDepth) {
+                System.err.println("Maximum number of indirection levels reached.");
+                state = State.DONE;
+                return;
+            }
+            depth++;
+            aliasTtl = Math.min(aliasTtl, cname.getTTL());
+            current = new DNSNode(cname.getTextResult(), node.getType());
+            if (!cache.getCachedResults(current).isEmpty()) {
+                state = State.DONE;
+                return;
+            }
+            DNSCache.NegativeResult negative = cache.peekNegativeResult(current);
+            if (negative != null) {
+                addAliasNegativeResult(negative.getTTL(), negative.isNameError(), negative.getSOA());
+                state = State.DONE;
+                return;
+            }
+            if (!cache.getCachedResults(new DNSNode(current.getHostName(), RecordType.CNAME)).isEmpty())
+                return;
+            servers = closestServers(current);
+            state = State.QUERY;
+        }
+
+        /** Records the negative result of the canonical name for the alias being resolved as
+         * well, for no longer than the CNAMEs leading to it remain valid, so a repeated lookup
+         * of the alias does not follow the chain again.
+         */
+        private void addAliasNegativeResult(long ttl, boolean nameError, ResourceRecord soa) {
+            if (!current.equals(node))
+                cache.addNegativeResult(node, Math.min(ttl, aliasTtl), nameError, soa);
+        }
+
+        /** Copies the records found for a canonical name to the node being resolved, and
+         * completes the resolution.
+         */
+        private void finish() {
+            synchronized (resolutions) {
+                resolutions.remove(node, this);
+            }
+            if (!current.equals(node))
+                for (ResourceRecord record : cache.getCachedResults(current))
+                    cache.addResult(record.copyFor(node, record.getTTL()));
+            results.complete(prefetch ? cache.peekCachedResults(node) : cache.getCachedResults(node));
+        }
+    }
+
+    /** Key of the queries waiting for a response: the node queried and the server it was sent to. */
+    private static final class QueryKey {
+
+        private final DNSNode node;
+        private final InetAddress server;
+
+        QueryKey(DNSNode node, InetAddress server) {
+            this.node = node;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey)) return false;
+            QueryKey key = (QueryKey) o;
+            return node.equals(key.node) && server.equals(key.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(node, server);
+        }
+    }
+
+    private final UdpTransport transport;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final InfraCache infraCache = new InfraCache();
+    private final Random random = new Random();
+
+    private final Map<DNSNode, Resolution> resolutions = new HashMap<>();
+    private final ConcurrentMap<QueryKey, CompletableFuture<DNSQuery>> queries = new ConcurrentHashMap<>();
+    private final LongAdder coalescedLookups = new LongAdder();
+    private final LongAdder coalescedQueries = new LongAdder();
+
+    private final TimerWheel hedgeTimer = new TimerWheel("dns-hedge", HEDGE_TICK_MILLIS);
+    private final AtomicInteger activeHedges = new AtomicInteger();
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder hedgesSent = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder hedgesSkipped = new LongAdder();
+
+    private volatile InetAddress rootServer;
+    private volatile boolean verboseTracing = false;
+    private volatile long staleClientTimeout = 1800;
+    private volatile int maxQueries = DEFAULT_MAX_QUERIES;
+    private volatile int maxDepth = MAX_INDIRECTION_LEVEL;
+    private volatile int maxHedges = DEFAULT_MAX_HEDGES;
+    private volatile boolean ipv6 = true;
+
+    /** Creates a resolver with its own transport.
+     *
+     * @param rootServer    Address of the root server where resolution starts.
+     * @param timeoutMillis Time to wait for the response to each query, in milliseconds.
+     * @throws IOException if the transport could not be opened.
+     */
+    public Resolver(InetAddress rootServer, long timeoutMillis) throws IOException {
+        this(rootServer, new UdpTransport(timeoutMillis));
+    }
+
+    /** Creates a resolver using an existing transport.
+     *
+     * @param rootServer Address of the root server where resolution starts.
+     * @param transport  Transport used to send queries.
+     */
+    public Resolver(InetAddress rootServer, UdpTransport transport) {
+        this.rootServer = rootServer;
+        this.transport = transport;
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    public boolean isVerboseTracing() {
+        return verboseTracing;
+    }
+
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    /** Sets the client deadline (serve-stale, RFC 8767): a lookup for a name that has stale
+     * records in the cache returns them if fresh results are not obtained within this time.
+     *
+     * @param millis Deadline in milliseconds, or 0 to wait for the resolution to finish.
+     */
+    public void setStaleClientTimeout(long millis) {
+        this.staleClientTimeout = millis;
+    }
+
+    /** Sets the limits of each lookup, after which it stops and returns whatever it found.
+     *
+     * @param maxQueries Maximum number of queries sent for a lookup, including the lookups of
+     *                   name server addresses it needs.
+     * @param maxDepth   Maximum number of CNAMEs and nested name server lookups a lookup may go
+     *                   through.
+     */
+    public void setLimits(int maxQueries, int maxDepth) {
+        this.maxQueries = maxQueries;
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Sets the maximum number of hedged queries (second queries sent to another server of the
+     * same zone when the first one is slow to answer) that may be in progress at the same time.
+     *
+     * @param maxHedges Maximum number of hedged queries, or 0 to disable hedging.
+     */
+    public void setMaxHedges(int maxHedges) {
+        this.maxHedges = maxHedges;
+    }
+
+    public int getMaxHedges() {
+        return maxHedges;
+    }
+
+    /** Sets whether the IPv6 addresses of name servers (AAAA glue and cached AAAA records) are
+     * used as candidates along with their IPv4 addresses.
+     *
+     * @param ipv6 True to query servers over IPv6 as well as IPv4, false for IPv4 only.
+     */
+    public void setIpv6Enabled(boolean ipv6) {
+        this.ipv6 = ipv6;
+    }
+
+    public boolean isIpv6Enabled() {
+        return ipv6;
+    }
+
+    /** Returns the number of questions sent to servers, not counting hedged queries and retries. */
+    public long getQueryCount() {
+        return queriesSent.sum();
+    }
+
+    /** Returns the number of hedged queries sent. */
+    public long getHedgeCount() {
+        return hedgesSent.sum();
+    }
+
+    /** Returns the number of hedged queries answered before the query they hedged. */
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /** Returns the number of hedged queries not sent because too many were in progress. */
+    public long getHedgeSkippedCount() {
+        return hedgesSkipped.sum();
+    }
+
+    public UdpTransport getTransport() {
+        return transport;
+    }
+
+    /** Returns the servers that failed recently and are skipped by lookups. */
+    public InfraCache getInfraCache() {
+        return infraCache;
+    }
+
+    /** Returns the number of lookups that waited for a resolution already in progress instead
+     * of starting their own.
+     */
+    public long getCoalescedLookupCount() {
+        return coalescedLookups.sum();
+    }
+
+    /** Returns the number of queries that shared the response of an identical query already sent
+     * to the same server instead of being sent again.
+     */
+    public long getCoalescedQueryCount() {
+        return coalescedQueries.sum();
+    }
+
+    /** Finds all results for a host name and type, from the cache if available, or by
+     * resolving it otherwise.
+     *
+     * @param node Host name and record type to be resolved.
+     * @return A future completed with the records found, which is empty if the name could not
+     *         be resolved.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node) {
+        return getResults(node, null);
+    }
+
+    /** Like resolveAsync(node), but gives up once the deadline is reached.
+     *
+     * @param node    Host name and record type to be resolved.
+     * @param timeout Maximum time to wait for the results.
+     * @param unit    Unit of the timeout.
+     * @return A future completed with the records found, or completed exceptionally with a
+     *         TimeoutException if the deadline is reached first.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node, long timeout, TimeUnit unit) {
+        return getResults(node, null).orTimeout(timeout, unit);
+    }
+
+    /** Refreshes the records of a node in the background, starting from the closest name
+     * server in the cache, unless the node is already being resolved. Used as the prefetch
+     * handler of the cache.
+     *
+     * @param node Host name and record type to be refreshed.
+     */
+    public void prefetch(DNSNode node) {
+        Resolution resolution;
+        boolean started = false;
+        synchronized (resolutions) {
+            resolution = resolutions.get(node);
+            if (resolution == null) {
+                resolution = new Resolution(node, new AtomicInteger(maxQueries), 0, true);
+                resolutions.put(node, resolution);
+                started = true;
+            } else
+                coalescedLookups.increment();
+        }
+        // Whether or not it found records, another refresh may be requested once this one is over
+        resolution.results.whenComplete((results, error) -> cache.prefetchDone(node));
+        if (started)
+            resolution.start();
+    }
+
+    /**
+     * Finds all the result for a specific node.
+     *
+     * @param node   Host and record type to be used for search.
+     * @param parent Resolution that needs these results, or null for a lookup made by a caller of
+     *               the resolver.
+     * @return A future completed with the resource records corresponding to the query.
+     */
+    private CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, Resolution parent) {
+        String name = node.getHostName();
+        if (name.endsWith("."))
+            node = new DNSNode(name.substring(0, name.length() - 1), node.getType());
+        if (name.startsWith(".")) {
+            System.err.println("\n" + "--> " + "'" + name + "'" + " is not a legal name");
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        }
+
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        if (!results.isEmpty())
+            return CompletableFuture.completedFuture(results);
+        if (cache.getNegativeResult(node) != null)
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        if (cache.hasStaleResults(node))
+            return resolveOrServeStale(node, parent);
+        return resolveFromServers(node, parent);
+    }
+
+    /**
+     * Resolves a node starting from the closest server found in the cache, or the root server
+     * if none is found, and returns the results found in the cache once resolution is done.
+     * If the node is already being resolved, the results of that resolution are returned
+     * instead, unless it is itself waiting for the parent resolution.
+     */
+    private CompletableFuture<Set<ResourceRecord>> resolveFromServers(DNSNode node, Resolution parent) {
+        Resolution resolution;
+        boolean started = false;
+        synchronized (resolutions) {
+            resolution = resolutions.get(node);
+            if (resolution == null) {
+                resolution = parent == null
+                        ? new Resolution(node, new AtomicInteger(maxQueries), 0, false)
+                        : new Resolution(node, parent.budget, parent.depth + 1, false);
+                resolutions.put(node, resolution);
+                started = true;
+            } else if (parent != null && waitsFor(resolution, parent)) {
+                System.err.println("Cyclic dependency while resolving " + node + ".");
+                return CompletableFuture.completedFuture(Collections.emptySet());
+            } else
+                coalescedLookups.increment();
+            if (parent != null)
+                parent.blockedOn = resolution;
+        }
+
+        Resolution current = resolution;
+        if (started)
+            resolution.start();
+        if (parent == null)
+            return resolution.results;
+        return resolution.results.whenComplete((results, error) -> {
+            synchronized (resolutions) {
+                if (parent.blockedOn == current)
+                    parent.blockedOn = null;
+            }
+        });
+    }
+
+    /** Returns true if a resolution is waiting, directly or through other resolutions, for
+     * another one. Called while holding the lock on the resolutions map.
+     */
+    private static boolean waitsFor(Resolution resolution, Resolution other) {
+        for (Resolution r = resolution; r != null; r = r.blockedOn)
+            if (r == other)
+                return true;
+        return false;
+    }
+
+    /**
+     * Resolves a node that has stale records in the cache (serve-stale, RFC 8767). The fresh
+     * results are returned if they are obtained within the client deadline. If the resolution
+     * fails, or takes longer than the deadline, the stale records are returned instead, while
+     * the resolution carries on and refreshes the cache when it is done. Only one resolution
+     * is performed at a time for each node.
+     */
+    private CompletableFuture<Set<ResourceRecord>> resolveOrServeStale(DNSNode node, Resolution parent) {
+        CompletableFuture<Set<ResourceRecord>> refresh = resolveFromServers(node, parent);
+
+        CompletableFuture<Set<ResourceRecord>> results = new CompletableFuture<>();
+        refresh.whenComplete((fresh, error) -> {
+            if (error == null && !fresh.isEmpty())
+                results.complete(fresh);
+            else if (!results.isDone())
+                results.complete(cache.getStaleResults(node));
+        });
+        long timeout = staleClientTimeout;
+        if (timeout > 0) {
+            Executor deadline = CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS);
+            deadline.execute(() -> {
+                if (!results.isDone())
+                    results.complete(cache.getStaleResults(node));
+            });
+        }
+        return results;
+    }
+
+    /**
+     * Sends a query for a node to a server, unless the same query was already sent to that
+     * server and is still waiting for its response, in which case that response is shared.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return A future completed with the query once it has an answer or has given up. A server
+     *         that gives up is recorded in the infrastructure cache, and one that answers is
+     *         cleared from it.
+     */
+    private CompletableFuture<DNSQuery> sendQuery(DNSNode node, InetAddress server) {
+        QueryKey key = new QueryKey(node, server);
+        CompletableFuture<DNSQuery> response = new CompletableFuture<>();
+        CompletableFuture<DNSQuery> sent = queries.putIfAbsent(key, response);
+        if (sent != null) {
+            coalescedQueries.increment();
+            return sent;
+        }
+
+        new DNSQuery(transport, node, server, 0, 0, verboseTracing).send().whenComplete((query, error) -> {
+            queries.remove(key, response);
+            if (error != null || !query.isAnswered())
+                infraCache.markUnresponsive(server);
+            else
+                infraCache.markAnswered(server);
+            if (error != null)
+                response.completeExceptionally(error);
+            else
+                response.complete(query);
+        });
+        return response;
+    }
+
+    /**
+     * Sends a query for a node to the first of a list of servers and, if it has not answered
+     * within its hedge delay, to the second one as well. The future returned is completed with
+     * the first query answered, or with the query to the first server if none is answered.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be queried, best first.
+     * @return A future completed with a query once it has an answer or all queries gave up.
+     */
+    private CompletableFuture<DNSQuery> sendHedged(DNSNode node, List<InetAddress> servers) {
+        queriesSent.increment();
+        CompletableFuture<DNSQuery> first = sendQuery(node, servers.get(0));
+        if (servers.size() < 2 || maxHedges <= 0)
+            return first;
+
+        CompletableFuture<DNSQuery> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        // Once every query sent gave up, the outcome of the first one is used
+        Runnable giveUp = () -> {
+            if (outstanding.decrementAndGet() == 0)
+                result.complete(first.isCompletedExceptionally() ? null : first.getNow(null));
+        };
+        first.whenComplete((query, error) -> {
+            if (isAnswered(query, error))
+                result.complete(query);
+            else
+                giveUp.run();
+        });
+
+        TimerWheel.Timeout timeout = hedgeTimer.schedule(System.currentTimeMillis() + hedgeDelay(servers.get(0)), () -> {
+            outstanding.incrementAndGet();
+            if (result.isDone() || first.isDone()) {
+                giveUp.run();
+                return;
+            }
+            if (activeHedges.incrementAndGet() > maxHedges) {
+                activeHedges.decrementAndGet();
+                hedgesSkipped.increment();
+                giveUp.run();
+                return;
+            }
+            hedgesSent.increment();
+            sendQuery(node, servers.get(1)).whenComplete((query, error) -> {
+                activeHedges.decrementAndGet();
+                if (isAnswered(query, error)) {
+                    if (result.complete(query))
+                        hedgeWins.increment();
+                } else
+                    giveUp.run();
+            });
+        });
+        result.whenComplete((query, error) -> timeout.cancel());
+        return result;
+    }
+
+    private static boolean isAnswered(DNSQuery query, Throwable error) {
+        return error == null && query != null && query.isAnswered();
+    }
+
+    /**
+     * Returns true if a response that is neither an answer nor a negative answer shows the server
+     * to be lame: it reports a failure or refuses the query, or does not refer to any name
+     * server.
+     */
+    private static boolean isLame(DNSQuery.DNSResponse response) {
+        if (response.RCODE != 0)
+            return true;
+        for (ResourceRecord record : response.authorities)
+            if (record.getType() == RecordType.NS)
+                return false;
+        return true;
+    }
+
+    /** Returns the time to wait for a server before hedging, in milliseconds: a high percentile
+     * of its round-trip time, or a fixed delay if it was never queried.
+     */
+    private long hedgeDelay(InetAddress server) {
+        double rto = transport.getRttTable().getRetransmissionTimeout(server);
+        if (rto < 0)
+            return INITIAL_HEDGE_DELAY;
+        return Math.max(MIN_HEDGE_DELAY, (long) Math.ceil(rto));
+    }
+
+    /** Returns the addresses of the name servers of the deepest zone enclosing a node whose
+     * name servers are found in the cache, best first, or the root server if there is none.
+     * If all the name servers of that zone failed recently, one of them is still returned.
+     */
+    private List<InetAddress> closestServers(DNSNode node) {
+        Set<ResourceRecord> servers = cache.getClosestNameServers(node.getName(), ipv6);
+        return servers.isEmpty() ? Collections.singletonList(rootServer) : rankServers(servers);
+    }
+
+    /**
+     * Returns the glue of a referral: the address records in the additional section that belong
+     * to one of the name servers listed in the authority section, leaving out AAAA records if
+     * IPv6 is disabled. Other address records may come from anywhere, and are not trusted to
+     * lead to the zone.
+     */
+    private List<ResourceRecord> referralGlue(DNSQuery.DNSResponse response) {
+        Set<DomainName> nameServers = new HashSet<>();
+        for (ResourceRecord record : response.authorities)
+            if (record.getType() == RecordType.NS)
+                nameServers.add(DomainName.of(record.getTextResult()));
+        List<ResourceRecord> glue = new ArrayList<>();
+        for (ResourceRecord record : response.additionals)
+            if ((record.getType() == RecordType.A || ipv6 && record.getType() == RecordType.AAAA)
+                    && nameServers.contains(record.getNode().getName()))
+                glue.add(record);
+        return glue;
+    }
+
+    /**
+     * Orders the addresses in a collection of records (A records, and AAAA records if IPv6 is
+     * enabled) from the server expected to answer first to the one expected to answer last,
+     * according to the round-trip times measured by the transport. Servers that failed
+     * recently are left out, unless all of them did.
+     *
+     * @param records Records with the addresses of the candidate servers.
+     * @return The addresses, best first, which is only empty if there is no candidate.
+     */
+    private List<InetAddress> rankServers(Collection<ResourceRecord> records) {
+        List<InetAddress> candidates = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            if ((record.getType() == RecordType.A || ipv6 && record.getType() == RecordType.AAAA)
+                    && record.hasAddress()
+                    && !candidates.contains(record.getInetResult()))
+                candidates.add(record.getInetResult());
+        return transport.getRttTable().rank(infraCache.filter(candidates));
+    }
+
+    /**
+     * Given a set of ResourceRecourdes chooses one random one
+     *
+     * @param set   A set of Resource records to get a random record from .
+     */
+    private ResourceRecord chooseARecord(Set<ResourceRecord> set) {
+        if (set.isEmpty())
+            return null;
+        int item = random.nextInt(set.size());
+        for (ResourceRecord record : set)
+            if (item-- == 0)
+                return record;
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+}
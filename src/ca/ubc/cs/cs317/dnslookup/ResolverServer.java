@@ -0,0 +1,414 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Serves the cache and the resolver to other hosts: a caching recursive resolver listening for
+ * DNS queries over UDP and TCP, such as those sent by the stub resolver of an operating system.
+ *
+ * A fixed number of worker threads receive queries from the same channel. Each query is parsed
+ * by DNSResponseParser, and answered from the cache on the worker thread itself when the cache
+ * has records or a negative result for the question, without going through the resolver: this
+ * fast path only reads the cache and encodes the response into a buffer owned by the worker.
+ * Other queries are handed to Resolver.resolveAsync, and answered from the thread that completes
+ * the resolution, so a worker never waits for a server and keeps receiving queries in the
+ * meantime. The number of resolutions in progress is limited; a query received beyond the limit,
+ * or one that could not be resolved in time, is answered with a server failure (SERVFAIL).
+ *
+ * Answers are the records the cache holds for the question. For an alias, these are the records
+ * of its canonical name, copied to the alias when it was resolved, so the response holds no
+ * CNAME record. A question with a negative result in the cache is answered as the server that
+ * gave it answered (RFC 2308): NXDOMAIN, or NOERROR with an empty answer section (NODATA), with
+ * the SOA record of the zone in the authority section, its TTL counting down, so the client can
+ * cache the negative answer as well. For an alias, the CNAME records leading to the missing
+ * name are given as answers, so the client does not take the alias itself to be missing.
+ * Only standard queries (OPCODE 0) for a single question of class IN and a supported record type
+ * are answered; other queries are answered with NOTIMP or FORMERR, and messages that cannot be
+ * parsed, or that are responses, are dropped.
+ *
+ * Responses are encoded by ResponseEncoder, with name compression. A client using EDNS0 receives
+ * responses up to the UDP payload size it advertised (at most the size configured for the
+ * server), others up to 512 bytes. Larger responses are truncated and marked as such (TC), and
+ * the client retries over TCP.
+ *
+ * The server listens for TCP connections on the same port as UDP. Each connection is served by a
+ * thread of its own, which reads the queries, each prefixed with its length (RFC 1035, section
+ * 4.2.2), and handles them as the workers handle UDP queries; responses go up to 65535 bytes, so
+ * they are never truncated. A client may send several queries without waiting for their
+ * responses, which are sent as they are ready, possibly in a different order (RFC 7766). The
+ * number of open connections is limited; connections beyond the limit are closed at once.
+ */
+public class ResolverServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 53;
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+
+    private static final int MAX_QUERY_LENGTH = 4096;
+    private static final int MAX_TCP_LENGTH = 65535;
+    private static final int MAX_TCP_CONNECTIONS = 256;
+
+    private final Resolver resolver;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final DatagramChannel channel;
+    private final ServerSocketChannel tcpChannel;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    private final int threads;
+    private final long timeoutMillis;
+    private final int udpPayloadSize;
+    private final Semaphore pending;
+    private final ThreadLocal<ResponseEncoder> encoders = ThreadLocal.withInitial(ResponseEncoder::new);
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder cacheAnswers = new LongAdder();
+    private final LongAdder resolved = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /** Creates a server and binds its UDP and TCP sockets.
+     *
+     * @param resolver       Resolver used for the questions not found in the cache.
+     * @param address        Local address and port where queries are received.
+     * @param threads        Number of worker threads receiving queries.
+     * @param timeoutMillis  Time allowed to resolve a question, in milliseconds.
+     * @param maxPending     Maximum number of questions being resolved at the same time.
+     * @param udpPayloadSize Largest UDP response sent to clients using EDNS0, in bytes.
+     * @throws IOException if the sockets could not be opened or bound.
+     */
+    public ResolverServer(Resolver resolver, InetSocketAddress address, int threads, long timeoutMillis,
+                          int maxPending, int udpPayloadSize) throws IOException {
+        this.resolver = resolver;
+        this.threads = Math.max(1, threads);
+        this.timeoutMillis = timeoutMillis;
+        this.pending = new Semaphore(Math.max(1, maxPending));
+        this.udpPayloadSize = Math.max(QueryEncoder.MAX_UDP_PAYLOAD, udpPayloadSize);
+        this.channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 22);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 1 << 22);
+        channel.bind(address);
+        try {
+            // Bound to the port of the UDP socket, which may have been chosen by the system
+            this.tcpChannel = ServerSocketChannel.open();
+            tcpChannel.bind(channel.getLocalAddress());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the address the server is bound to. */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /** Starts the worker threads and the thread accepting TCP connections, and waits until the
+     * server is closed.
+     */
+    public void run() {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::receive, "dns-server-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        Thread acceptor = new Thread(this::acceptTcp, "dns-server-tcp");
+        acceptor.start();
+        workers.add(acceptor);
+        for (Thread worker : workers)
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+    }
+
+    /** Stops receiving queries, and closes the TCP connections. Resolutions in progress are
+     * abandoned.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        tcpChannel.close();
+        for (SocketChannel connection : connections)
+            connection.close();
+    }
+
+    /** Receives and handles queries until the channel is closed. */
+    private void receive() {
+        ByteBuffer query = ByteBuffer.allocateDirect(MAX_QUERY_LENGTH);
+        ByteBuffer response = ByteBuffer.allocateDirect(udpPayloadSize);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            try {
+                query.clear();
+                client = channel.receive(query);
+                query.flip();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not receive query (" + e.getMessage() + ").");
+                continue;
+            }
+            received.increment();
+            handle(query, response, true, out -> channel.send(out, client));
+        }
+    }
+
+    /** Accepts TCP connections until the server is closed, and starts a thread serving each. */
+    private void acceptTcp() {
+        while (tcpChannel.isOpen()) {
+            SocketChannel connection;
+            try {
+                connection = tcpChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not accept connection (" + e.getMessage() + ").");
+                continue;
+            }
+            if (connections.size() >= MAX_TCP_CONNECTIONS) {
+                closeQuietly(connection);
+                continue;
+            }
+            connections.add(connection);
+            Thread thread = new Thread(() -> serveTcp(connection), "dns-server-tcp-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Handles the queries of a TCP connection, each prefixed with its length, until it is closed. */
+    private void serveTcp(SocketChannel connection) {
+        ByteBuffer prefix = ByteBuffer.allocate(2);
+        ByteBuffer query = ByteBuffer.allocate(MAX_QUERY_LENGTH);
+        ByteBuffer response = ByteBuffer.allocate(MAX_TCP_LENGTH);
+        try {
+            while (true) {
+                prefix.clear();
+                if (!readFully(connection, prefix))
+                    return;
+                int length = prefix.getShort(0) & 0xFFFF;
+                if (length > MAX_QUERY_LENGTH) {
+                    dropped.increment();
+                    return;
+                }
+                query.clear().limit(length);
+                if (!readFully(connection, query))
+                    return;
+                query.flip();
+                received.increment();
+                handle(query, response, false, out -> sendTcp(connection, out));
+            }
+        } catch (IOException e) {
+            // Connection closed by the client, or by the server
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    private static boolean readFully(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            if (connection.read(buffer) < 0)
+                return false;
+        return true;
+    }
+
+    /** Sends a response over a TCP connection, prefixed with its length. Responses completed by
+     * different threads are written one at a time, so they are not interleaved.
+     */
+    private static void sendTcp(SocketChannel connection, ByteBuffer response) throws IOException {
+        ByteBuffer[] message = {ByteBuffer.allocate(2).putShort(0, (short) response.remaining()), response};
+        synchronized (connection) {
+            while (response.hasRemaining())
+                connection.write(message);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+    }
+
+    /** Answers a query from the cache if possible, or starts resolving it otherwise.
+     *
+     * @param query    Buffer holding the query, reused once this method returns.
+     * @param response Buffer where a response from the cache is encoded.
+     * @param udp      True if the query was received over UDP, and the response is limited in size.
+     * @param client   Client the response is sent to.
+     */
+    private void handle(ByteBuffer query, ByteBuffer response, boolean udp, Client client) {
+        DNSResponseParser parser;
+        int questionEnd;
+        try {
+            parser = new DNSResponseParser(query);
+            if (parser.isResponse()) {
+                dropped.increment();
+                return;
+            }
+            questionEnd = parser.parseQuestion();
+            parser.parse();
+        } catch (IOException e) {
+            dropped.increment();
+            return;
+        }
+
+        int opcode = (parser.getFlags() >> 11) & 0xF;
+        int ednsPayload = parser.getUdpPayloadSize();
+        int maxLength = !udp ? MAX_TCP_LENGTH : ednsPayload < 0 ? QueryEncoder.MAX_UDP_PAYLOAD
+                : Math.max(QueryEncoder.MAX_UDP_PAYLOAD, Math.min(ednsPayload, udpPayloadSize));
+        int advertised = ednsPayload < 0 ? 0 : udpPayloadSize;
+        if (parser.getQuestionCount() != 1) {
+            rejected.increment();
+            send(response, query, 0, null, ResponseEncoder.RCODE_FORMERR, Collections.emptySet(),
+                    Collections.emptySet(), maxLength, advertised, client);
+            return;
+        }
+        DomainName name = parser.getQuestionName();
+        RecordType type = RecordType.getByCode(parser.getQuestionType());
+        int questionClass = query.getShort(query.position() + questionEnd - 2) & 0xFFFF;
+        if (opcode != 0 || type == RecordType.OTHER || questionClass != ResponseEncoder.CLASS_IN) {
+            rejected.increment();
+            send(response, query, questionEnd, name, ResponseEncoder.RCODE_NOTIMP, Collections.emptySet(),
+                    Collections.emptySet(), maxLength, advertised, client);
+            return;
+        }
+
+        // Fast path: answered from the cache on this thread
+        DNSNode node = new DNSNode(name, type);
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        if (!cached.isEmpty()) {
+            cacheAnswers.increment();
+            send(response, query, questionEnd, name, ResponseEncoder.RCODE_NOERROR, cached,
+                    Collections.emptySet(), maxLength, advertised, client);
+            return;
+        }
+        DNSCache.NegativeResult negative = cache.getNegativeResult(node);
+        if (negative != null) {
+            cacheAnswers.increment();
+            sendNegative(response, query, questionEnd, node, negative, maxLength, advertised, client);
+            return;
+        }
+
+        // The query buffer is reused by the worker, so the query is copied for the response
+        ByteBuffer copy = ByteBuffer.allocate(query.remaining()).put(query.duplicate()).flip();
+        if (!pending.tryAcquire()) {
+            failed.increment();
+            send(ByteBuffer.allocate(maxLength), copy, questionEnd, name, ResponseEncoder.RCODE_SERVFAIL,
+                    Collections.emptySet(), Collections.emptySet(), maxLength, advertised, client);
+            return;
+        }
+        resolver.resolveAsync(node, timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((records, error) -> {
+            pending.release();
+            ByteBuffer out = ByteBuffer.allocate(maxLength);
+            if (error == null && !records.isEmpty()) {
+                resolved.increment();
+                send(out, copy, questionEnd, name, ResponseEncoder.RCODE_NOERROR, records,
+                        Collections.emptySet(), maxLength, advertised, client);
+                return;
+            }
+            DNSCache.NegativeResult result = error == null ? cache.peekNegativeResult(node) : null;
+            if (result != null) {
+                resolved.increment();
+                sendNegative(out, copy, questionEnd, node, result, maxLength, advertised, client);
+            } else {
+                failed.increment();
+                send(out, copy, questionEnd, name, ResponseEncoder.RCODE_SERVFAIL, Collections.emptySet(),
+                        Collections.emptySet(), maxLength, advertised, client);
+            }
+        });
+    }
+
+    /** Sends a negative answer from the cache: NXDOMAIN or NODATA, with the CNAME records that
+     * lead from the question to the missing name, if it is an alias, and the SOA record.
+     */
+    private void sendNegative(ByteBuffer response, ByteBuffer query, int questionEnd, DNSNode node,
+                              DNSCache.NegativeResult negative, int maxLength, int advertised, Client client) {
+        List<ResourceRecord> aliases = new ArrayList<>();
+        DomainName name = node.getName();
+        while (node.getType() != RecordType.CNAME && aliases.size() < Resolver.MAX_INDIRECTION_LEVEL) {
+            Set<ResourceRecord> cname = cache.getCachedResults(new DNSNode(name, RecordType.CNAME));
+            if (cname.isEmpty())
+                break;
+            ResourceRecord record = cname.iterator().next();
+            aliases.add(record);
+            name = DomainName.of(record.getTextResult());
+        }
+        ResourceRecord soa = negative.getSOA();
+        send(response, query, questionEnd, node.getName(),
+                negative.isNameError() ? ResponseEncoder.RCODE_NXDOMAIN : ResponseEncoder.RCODE_NOERROR, aliases,
+                soa == null ? Collections.emptySet() : Collections.singleton(soa), maxLength, advertised, client);
+    }
+
+    private void send(ByteBuffer response, ByteBuffer query, int questionEnd, DomainName name, int rcode,
+                      Collection<ResourceRecord> answers, Collection<ResourceRecord> authorities, int maxLength,
+                      int advertised, Client client) {
+        encoders.get().encode(response, query, questionEnd, name, ResponseEncoder.FLAG_RA, rcode, answers,
+                authorities, Collections.emptySet(), maxLength, advertised);
+        try {
+            client.send(response);
+        } catch (IOException e) {
+            if (channel.isOpen())
+                System.err.println("Could not send response (" + e.getMessage() + ").");
+        }
+    }
+
+    /** Where the response to a query is sent: a UDP client, or a TCP connection. */
+    private interface Client {
+        void send(ByteBuffer response) throws IOException;
+    }
+
+    /** Returns the number of messages received. */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /** Returns the number of queries answered from the cache, without the resolver. */
+    public long getCacheAnswerCount() {
+        return cacheAnswers.sum();
+    }
+
+    /** Returns the number of queries answered after being resolved. */
+    public long getResolvedCount() {
+        return resolved.sum();
+    }
+
+    /** Returns the number of queries answered with a server failure. */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /** Returns the number of queries answered with NOTIMP or FORMERR. */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /** Returns the number of messages dropped because they could not be parsed or were not
+     * queries.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -2,30 +2,96 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Records are kept in a compact form, since the cache may hold millions of them: the expiration
+ * time is a primitive long, so checking whether a record is still valid allocates nothing, and
+ * an IPv4 address is packed in an int and an IPv6 address in two longs. The InetAddress and the
+ * text of an address record are only created when asked for.
  */
 public class ResourceRecord implements Serializable {
 
-    private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_IPV4 = 4;
+    private static final byte KIND_IPV6 = 6;
+
+    private final DNSNode node;
+    private final long expirationTime;
+    private final int originalTTL;
+    private final byte kind;
+    private final int ipv4;
+    private final long ipv6High;
+    private final long ipv6Low;
+    private final String textResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName, type), ttl, result);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(new DNSNode(hostName, type), ttl, result);
+    }
+
+    /** Creates a record for a node whose name is already in canonical form, as when parsing
+     * a response.
+     */
+    public ResourceRecord(DNSNode node, long ttl, String result) {
+        this(node, System.currentTimeMillis() + (ttl * 1000), ttl, result, (byte[]) null);
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, InetAddress result) {
+        this(node, System.currentTimeMillis() + (ttl * 1000), ttl, null, result.getAddress());
+    }
+
+    /** Creates an address record from the bytes of the address, without an InetAddress.
+     *
+     * @param address The 4 bytes of an IPv4 address or the 16 bytes of an IPv6 address.
+     */
+    public ResourceRecord(DNSNode node, long ttl, byte[] address) {
+        this(node, System.currentTimeMillis() + (ttl * 1000), ttl, null, address);
+    }
+
+    /** Creates a record with an absolute expiration time, for example when loading records
+     * saved in a cache snapshot.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, long originalTTL, String textResult, InetAddress inetResult) {
+        this(node, expirationTime, originalTTL, inetResult == null ? textResult : null,
+                inetResult == null ? null : inetResult.getAddress());
+    }
+
+    /** Creates a record with an absolute expiration time and either a text result or the bytes
+     * of an address.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, long originalTTL, String textResult, byte[] address) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = (int) Math.min(originalTTL, Integer.MAX_VALUE);
+        ByteBuffer bytes = address == null ? null : ByteBuffer.wrap(address);
+        if (bytes != null && address.length == 4) {
+            this.kind = KIND_IPV4;
+            this.ipv4 = bytes.getInt();
+            this.ipv6High = this.ipv6Low = 0;
+            this.textResult = null;
+        } else if (bytes != null && address.length == 16) {
+            this.kind = KIND_IPV6;
+            this.ipv4 = 0;
+            this.ipv6High = bytes.getLong();
+            this.ipv6Low = bytes.getLong();
+            this.textResult = null;
+        } else if (bytes != null) {
+            throw new IllegalArgumentException("Invalid address length " + address.length);
+        } else {
+            this.kind = KIND_TEXT;
+            this.ipv4 = 0;
+            this.ipv6High = this.ipv6Low = 0;
+            this.textResult = textResult;
+        }
     }
 
     public DNSNode getNode() {
@@ -48,7 +114,16 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** The TTL this record had when it was created, i.e., usually the TTL obtained from the DNS
+     * server.
+     *
+     * @return The original number of seconds this record was valid for.
+     */
+    public long getOriginalTTL() {
+        return originalTTL;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +133,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > System.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +145,59 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** The absolute time at which this record expires.
+     *
+     * @return Expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
+    /** The result in text form: the name or data of the record, or its address in the usual
+     * notation for an address record, built on each call.
+     */
     public String getTextResult() {
+        if (kind == KIND_IPV4)
+            return (ipv4 >>> 24) + "." + (ipv4 >>> 16 & 0xFF) + "." + (ipv4 >>> 8 & 0xFF) + "." + (ipv4 & 0xFF);
+        if (kind == KIND_IPV6)
+            return getInetResult().getHostAddress();
         return textResult;
     }
 
+    /** The address of an address record, built on each call, or null for other records. */
     public InetAddress getInetResult() {
-        return inetResult;
+        byte[] address = getAddress();
+        try {
+            return address == null ? null : InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // Only thrown for an invalid length
+        }
+    }
+
+    /** Returns a record with the same result for another node, valid for a given TTL, for
+     * example to give the records of a canonical name to its alias.
+     */
+    public ResourceRecord copyFor(DNSNode node, long ttl) {
+        return new ResourceRecord(node, System.currentTimeMillis() + (ttl * 1000), ttl, textResult, getAddress());
+    }
+
+    /** Returns true if this record holds an address rather than a text result. */
+    public boolean hasAddress() {
+        return kind != KIND_TEXT;
+    }
+
+    /** The bytes of the address of an address record (4 for IPv4, 16 for IPv6), in a new array,
+     * or null for other records.
+     */
+    public byte[] getAddress() {
+        if (kind == KIND_IPV4)
+            return ByteBuffer.allocate(4).putInt(ipv4).array();
+        if (kind == KIND_IPV6)
+            return ByteBuffer.allocate(16).putLong(ipv6High).putLong(ipv6Low).array();
+        return null;
     }
 
     @Override
@@ -88,15 +207,18 @@ public class ResourceRecord implements Serializable {
 
         ResourceRecord record = (ResourceRecord) o;
 
-        if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (kind != record.kind || !node.equals(record.node)) return false;
+        if (kind == KIND_TEXT) return textResult.equals(record.textResult);
+        return ipv4 == record.ipv4 && ipv6High == record.ipv6High && ipv6Low == record.ipv6Low;
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        if (kind == KIND_TEXT)
+            result = 31 * result + textResult.hashCode();
+        else
+            result = 31 * (31 * result + ipv4) + Long.hashCode(ipv6High ^ ipv6Low);
         return result;
     }
 }
@@ -0,0 +1,210 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Encodes DNS responses in wire format (RFC 1035, section 4) directly into a byte buffer, for
+ * the queries received by a ResolverServer, or by a MockAuthority answering as an authoritative
+ * server.
+ *
+ * The question is copied from the query as it was received, so the client finds its own
+ * question, in its own case, in the response. Names are compressed (RFC 1035, section 4.1.4):
+ * each name written is recorded with its offset in the message, suffix by suffix, and a name
+ * (or the rest of a name) already in the message is replaced by a pointer to it. The owner
+ * names of the answers, which are usually the name queried, thus take two bytes each. Names in
+ * the data of NS, CNAME, MX and SOA records are compressed as well.
+ *
+ * The response is limited to the size of UDP response the client accepts. Answer and authority
+ * records that do not fit are left out and the response is marked as truncated (TC), as RFC 1035
+ * requires; additional records, which the client can do without, are dropped silently.
+ *
+ * An encoder keeps its compression table between calls to avoid allocating it for every
+ * response, so it must only be used by one thread at a time.
+ */
+public class ResponseEncoder {
+
+    public static final int HEADER_LENGTH = 12;
+    public static final int CLASS_IN = 1;
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_FORMERR = 1;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int RCODE_NOTIMP = 4;
+    public static final int RCODE_REFUSED = 5;
+
+    public static final int FLAG_AA = 0x0400;
+    public static final int FLAG_RA = 0x0080;
+
+    private static final int OPT_LENGTH = 11;
+    private static final int MAX_POINTER = 0x3FFF;
+
+    private final Map<DomainName, Integer> offsets = new HashMap<>();
+
+    /** Writes a response into a buffer. The buffer is cleared first, and is flipped when done,
+     * so it is ready to be sent. Records of the answer and authority sections that do not fit
+     * mark the response as truncated; additional records that do not fit are simply left out.
+     *
+     * @param out            Buffer where the response is written.
+     * @param query          Buffer holding the query, from its start to its limit.
+     * @param questionEnd    Offset of the end of the question section in the query, or 0 to
+     *                       leave the question out (for a malformed query).
+     * @param questionName   Canonical name of the question, or null if it is left out.
+     * @param flags          FLAG_AA and FLAG_RA bits to set in the header.
+     * @param rcode          Response code.
+     * @param answers        Records of the answer section.
+     * @param authorities    Records of the authority section.
+     * @param additionals    Records of the additional section.
+     * @param maxLength      Largest response the client accepts, in bytes.
+     * @param udpPayloadSize UDP payload size advertised in an OPT record, or 0 to leave it out
+     *                       (the client did not use EDNS0).
+     * @return The length of the response in bytes.
+     */
+    public int encode(ByteBuffer out, ByteBuffer query, int questionEnd, DomainName questionName, int flags,
+                      int rcode, Collection<ResourceRecord> answers, Collection<ResourceRecord> authorities,
+                      Collection<ResourceRecord> additionals, int maxLength, int udpPayloadSize) {
+        int base = query.position();
+        int queryFlags = query.getShort(base + 2) & 0xFFFF;
+        boolean edns = udpPayloadSize > 0;
+        offsets.clear();
+
+        out.clear();
+        out.limit(Math.min(out.capacity(), maxLength) - (edns ? OPT_LENGTH : 0));
+        out.putShort(query.getShort(base)); // ID
+        out.putShort((short) 0); // Flags, written last
+        out.putShort((short) (questionEnd > 0 ? 1 : 0)); // QDCOUNT
+        out.putShort((short) 0); // ANCOUNT, written last
+        out.putShort((short) 0); // NSCOUNT, written last
+        out.putShort((short) 0); // ARCOUNT, written last
+
+        if (questionEnd > 0) {
+            out.put(query.slice(base + HEADER_LENGTH, questionEnd - HEADER_LENGTH));
+            // Every suffix of the question name can be pointed to
+            int offset = HEADER_LENGTH;
+            for (DomainName name = questionName; !name.isRoot(); name = name.getParent()) {
+                int length = query.get(base + offset) & 0xFF;
+                if ((length & 0xC0) != 0)
+                    break; // A compressed question; its remaining suffixes are not pointed to
+                offsets.putIfAbsent(name, offset);
+                offset += length + 1;
+            }
+        }
+
+        int answerCount = writeSection(out, answers);
+        int authorityCount = answerCount < 0 ? 0 : writeSection(out, authorities);
+        boolean truncated = answerCount < 0 || authorityCount < 0;
+        int additionalCount = truncated ? 0 : writeSection(out, additionals);
+
+        flags = 0x8000 | (queryFlags & 0x7900) | (flags & (FLAG_AA | FLAG_RA)) | rcode; // QR, OPCODE and RD
+        if (truncated)
+            flags |= 0x0200;
+        out.putShort(2, (short) flags);
+        out.putShort(6, (short) written(answerCount));
+        out.putShort(8, (short) written(authorityCount));
+        out.putShort(10, (short) (written(additionalCount) + (edns ? 1 : 0)));
+
+        if (edns) {
+            out.limit(out.capacity());
+            out.put((byte) 0); // Root name
+            out.putShort((short) QueryEncoder.TYPE_OPT);
+            out.putShort((short) Math.max(QueryEncoder.MAX_UDP_PAYLOAD, Math.min(udpPayloadSize, 0xFFFF)));
+            out.putInt(0); // Extended RCODE, version 0, no flags
+            out.putShort((short) 0); // No options
+        }
+        out.flip();
+        return out.limit();
+    }
+
+    /** Writes the records of a section until one does not fit.
+     *
+     * @return The number of records written, or, if one did not fit, -1 minus that number.
+     */
+    private int writeSection(ByteBuffer out, Collection<ResourceRecord> records) {
+        int count = 0;
+        for (ResourceRecord record : records) {
+            int mark = out.position();
+            try {
+                if (writeRecord(out, record))
+                    count++;
+            } catch (BufferOverflowException e) {
+                // Offsets recorded past the mark are never used, since nothing else is written
+                out.position(mark);
+                return -1 - count;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of records written by writeSection from its result. */
+    private static int written(int result) {
+        return result < 0 ? -1 - result : result;
+    }
+
+    /** Writes one record. Records of an unknown type (OTHER), whose type code is not kept, are
+     * skipped before anything is written.
+     *
+     * @return True if the record was written.
+     */
+    private boolean writeRecord(ByteBuffer out, ResourceRecord record) {
+        RecordType type = record.getType();
+        if (type == RecordType.OTHER)
+            return false;
+        writeName(out, record.getNode().getName());
+        out.putShort((short) type.getCode());
+        out.putShort((short) CLASS_IN);
+        out.putInt((int) Math.max(0, record.getTTL()));
+        int lengthOffset = out.position();
+        out.putShort((short) 0); // RDLENGTH, written last
+
+        String text = record.getTextResult();
+        switch (type) {
+            case A:
+            case AAAA:
+                out.put(record.getAddress());
+                break;
+            case NS:
+            case CNAME:
+                writeName(out, DomainName.of(text));
+                break;
+            case MX: {
+                // "preference exchange", as written by DNSResponseParser
+                String[] fields = text.split(" ", 2);
+                out.putShort((short) Integer.parseInt(fields[0]));
+                writeName(out, DomainName.of(fields[1]));
+                break;
+            }
+            case SOA: {
+                // "mname rname serial refresh retry expire minimum"
+                String[] fields = text.split(" ");
+                writeName(out, DomainName.of(fields[0]));
+                writeName(out, DomainName.of(fields[1]));
+                for (int i = 2; i < 7; i++)
+                    out.putInt((int) Long.parseLong(fields[i]));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unexpected record type " + type);
+        }
+        out.putShort(lengthOffset, (short) (out.position() - lengthOffset - 2));
+        return true;
+    }
+
+    /** Writes a name, replacing its longest suffix already in the message by a pointer, and
+     * records the offsets of the suffixes written in full.
+     */
+    private void writeName(ByteBuffer out, DomainName name) {
+        for (; !name.isRoot(); name = name.getParent()) {
+            Integer pointer = offsets.get(name);
+            if (pointer != null) {
+                out.putShort((short) (0xC000 | pointer));
+                return;
+            }
+            if (out.position() <= MAX_POINTER)
+                offsets.put(name, out.position());
+            name.writeLabelTo(out);
+        }
+        out.put((byte) 0);
+    }
+}
@@ -0,0 +1,174 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Keeps the round-trip time of the responses received from each server, so queries can be
+ * sent to the server expected to answer first.
+ *
+ * For each server address the table keeps a smoothed RTT and its mean deviation, updated with
+ * every response as in TCP's retransmission timer (RFC 6298): each sample moves the smoothed RTT
+ * by 1/8 of the difference and the deviation by 1/4. A query that times out doubles a penalty
+ * for its server (at least to the timeout), which is used instead of the smoothed RTT when
+ * larger, so servers that do not answer are avoided. The penalty is cleared by the next
+ * response, and does not affect the smoothed RTT itself, so the RTT percentile estimate used
+ * for hedging only reflects responses actually received.
+ *
+ * The expected RTT of a server decays while it is not used, halving every DECAY_HALF_LIFE
+ * milliseconds. A server that was slow, or did not answer, therefore gets chosen again after a
+ * while and is probed, and its RTT corrected if it has improved. Servers never seen are expected
+ * to answer immediately, so each candidate is tried at least once.
+ */
+public class RttTable {
+
+    public static final long DECAY_HALF_LIFE = 60_000;
+    private static final double MAX_PENALTY_MILLIS = 30_000;
+
+    /** Statistics of one server. Fields are guarded by the entry itself. */
+    public static final class Entry {
+
+        private double srtt;
+        private double rttvar;
+        private double penalty;
+        private long updated;
+        private long samples;
+        private long timeouts;
+
+        /** Returns the smoothed RTT, or the timeout penalty if larger, decayed by the time
+         * elapsed since the last update.
+         */
+        private double expected(long now) {
+            double idle = Math.max(0, now - updated);
+            return Math.max(srtt, penalty) * Math.pow(0.5, idle / DECAY_HALF_LIFE);
+        }
+
+        public synchronized double getSmoothedRtt() {
+            return srtt;
+        }
+
+        public synchronized double getRttVariation() {
+            return rttvar;
+        }
+
+        public synchronized double getExpectedRtt() {
+            return expected(System.currentTimeMillis());
+        }
+
+        public synchronized long getSampleCount() {
+            return samples;
+        }
+
+        public synchronized long getTimeoutCount() {
+            return timeouts;
+        }
+
+        /** Returns the time elapsed since the last response or timeout, in milliseconds. */
+        public synchronized long getIdleTime() {
+            return System.currentTimeMillis() - updated;
+        }
+    }
+
+    private final ConcurrentMap<InetAddress, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Records the round-trip time of a response.
+     *
+     * @param server Address of the server that sent the response.
+     * @param millis Time between sending the query and receiving the response, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, double millis) {
+        Entry entry = entries.computeIfAbsent(server, key -> new Entry());
+        long now = System.currentTimeMillis();
+        synchronized (entry) {
+            if (entry.samples == 0) {
+                entry.srtt = millis;
+                entry.rttvar = millis / 2;
+            } else {
+                double srtt = Math.min(entry.srtt, entry.expected(now));
+                entry.rttvar = 0.75 * entry.rttvar + 0.25 * Math.abs(srtt - millis);
+                entry.srtt = 0.875 * srtt + 0.125 * millis;
+            }
+            entry.penalty = 0;
+            entry.samples++;
+            entry.updated = now;
+        }
+    }
+
+    /** Records that a query sent to a server was not answered in time.
+     *
+     * @param server        Address of the server.
+     * @param timeoutMillis Time the query waited for a response, in milliseconds.
+     */
+    public void recordTimeout(InetAddress server, double timeoutMillis) {
+        Entry entry = entries.computeIfAbsent(server, key -> new Entry());
+        long now = System.currentTimeMillis();
+        synchronized (entry) {
+            entry.penalty = Math.min(Math.max(entry.expected(now) * 2, timeoutMillis), MAX_PENALTY_MILLIS);
+            entry.timeouts++;
+            entry.updated = now;
+        }
+    }
+
+    /** Returns the expected RTT of a server, in milliseconds, or 0 if it was never used. */
+    public double getExpectedRtt(InetAddress server) {
+        Entry entry = entries.get(server);
+        return entry == null ? 0 : entry.getExpectedRtt();
+    }
+
+    /** Returns an estimate of a high percentile of the RTT of a server, in milliseconds: its
+     * smoothed RTT plus four times its deviation, as used for TCP's retransmission timeout.
+     *
+     * @param server Address of the server.
+     * @return The estimate, or -1 if no response was received from the server.
+     */
+    public double getRetransmissionTimeout(InetAddress server) {
+        Entry entry = entries.get(server);
+        if (entry == null)
+            return -1;
+        synchronized (entry) {
+            return entry.samples == 0 ? -1 : entry.srtt + 4 * entry.rttvar;
+        }
+    }
+
+    /** Orders servers from the lowest to the highest expected RTT. Servers with the same expected
+     * RTT, such as servers never used, are ordered at random.
+     *
+     * @param candidates Addresses of the servers to order.
+     * @return A new list with the candidates, best first.
+     */
+    public List<InetAddress> rank(Collection<InetAddress> candidates) {
+        List<InetAddress> ranked = new ArrayList<>(candidates);
+        if (ranked.size() < 2)
+            return ranked;
+        Collections.shuffle(ranked, ThreadLocalRandom.current());
+        // Expected RTTs change over time, so they are taken once before sorting
+        Map<InetAddress, Double> expected = new HashMap<>();
+        for (InetAddress server : ranked)
+            expected.put(server, getExpectedRtt(server));
+        ranked.sort(Comparator.comparingDouble(expected::get));
+        return ranked;
+    }
+
+    /** Performs an action for each server in the table, in order of expected RTT.
+     *
+     * @param consumer Action to be performed for each server address and its statistics.
+     */
+    public void forEach(BiConsumer<InetAddress, Entry> consumer) {
+        // Expected RTTs change over time, so they are taken once before sorting
+        Map<InetAddress, Double> expected = new HashMap<>();
+        entries.forEach((server, entry) -> expected.put(server, entry.getExpectedRtt()));
+        List<InetAddress> sorted = new ArrayList<>(expected.keySet());
+        sorted.sort(Comparator.comparingDouble(expected::get));
+        for (InetAddress server : sorted)
+            consumer.accept(server, entries.get(server));
+    }
+}
@@ -0,0 +1,145 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/** Sends DNS queries over TCP (RFC 1035, section 4.2.2; RFC 7766), used when a response over
+ * UDP was truncated because it did not fit in a datagram.
+ *
+ * Each query opens its own connection, sends the query prefixed with its length, reads a
+ * single response and closes the connection. All operations are asynchronous, so no thread
+ * waits for the server; callbacks run on the threads of the default asynchronous channel group.
+ * A query that has not received its whole response within the timeout is abandoned and its
+ * connection closed.
+ */
+public class TcpTransport {
+
+    private final long timeoutMillis;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param timeoutMillis Time allowed for connecting, sending a query and receiving its whole
+     *                      response, in milliseconds.
+     */
+    public TcpTransport(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Sends a query and returns a future completed with its response. The future completes
+     * exceptionally with a SocketTimeoutException if the whole response does not arrive in time,
+     * or with an IOException if the connection fails.
+     *
+     * @param id     Query ID.
+     * @param flags  Second 16-bit word of the header.
+     * @param node   Host name and record type queried.
+     * @param server Address of the server.
+     * @param port   Port of the server.
+     * @return A future completed with a buffer holding the response, positioned at its start
+     *         and limited to its length.
+     */
+    public CompletableFuture<ByteBuffer> query(int id, int flags, DNSNode node, InetAddress server, int port) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        AsynchronousSocketChannel channel;
+        ByteBuffer request = ByteBuffer.allocate(2 + QueryEncoder.MAX_QUERY_LENGTH);
+        try {
+            int length = QueryEncoder.encode(request.slice(2, QueryEncoder.MAX_QUERY_LENGTH), id, flags, node);
+            request.putShort(0, (short) length).limit(2 + length);
+            channel = AsynchronousSocketChannel.open();
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            response.completeExceptionally(e);
+            return response;
+        }
+        sent.increment();
+
+        channel.connect(new InetSocketAddress(server, port), null, handler(response, connected ->
+                writeFully(channel, request, response, () -> {
+                    ByteBuffer prefix = ByteBuffer.allocate(2);
+                    readFully(channel, prefix, response, () -> {
+                        ByteBuffer message = ByteBuffer.allocate(prefix.getShort(0) & 0xFFFF);
+                        readFully(channel, message, response, () -> response.complete(message.flip()));
+                    });
+                })));
+
+        return response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).handle((message, error) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with the connection
+            }
+            if (error == null)
+                return CompletableFuture.completedFuture(message);
+            failed.increment();
+            return CompletableFuture.<ByteBuffer>failedFuture(error instanceof TimeoutException
+                    ? new SocketTimeoutException("No response from " + server.getHostAddress() + " over TCP")
+                    : error);
+        }).thenCompose(message -> message);
+    }
+
+    /** Writes the remaining bytes of a buffer, then runs an action. */
+    private static void writeFully(AsynchronousSocketChannel channel, ByteBuffer buffer,
+                                   CompletableFuture<?> response, Runnable then) {
+        channel.write(buffer, null, handler(response, written -> {
+            if (buffer.hasRemaining())
+                writeFully(channel, buffer, response, then);
+            else
+                then.run();
+        }));
+    }
+
+    /** Fills the remaining space of a buffer, then runs an action. */
+    private static void readFully(AsynchronousSocketChannel channel, ByteBuffer buffer,
+                                  CompletableFuture<?> response, Runnable then) {
+        if (!buffer.hasRemaining()) {
+            then.run();
+            return;
+        }
+        channel.read(buffer, null, handler(response, read -> {
+            if (read < 0)
+                response.completeExceptionally(new EOFException("Connection closed before the end of the response"));
+            else
+                readFully(channel, buffer, response, then);
+        }));
+    }
+
+    /** Returns a completion handler that passes the result of an operation to the next step, or
+     * completes the response exceptionally if the operation failed.
+     */
+    private static <V> CompletionHandler<V, Void> handler(CompletableFuture<?> response,
+                                                          Consumer<V> next) {
+        return new CompletionHandler<V, Void>() {
+            @Override
+            public void completed(V result, Void attachment) {
+                if (!response.isDone())
+                    next.accept(result);
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                response.completeExceptionally(error);
+            }
+        };
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /** Returns the number of queries that failed or did not receive their response in time. */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+}
@@ -0,0 +1,188 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A hierarchical timing wheel used to run actions at (approximately) a specific time, such as
+ * removing a resource record from the cache once its TTL runs out. Time is divided in ticks of
+ * a fixed duration. The lowest wheel has one slot per tick, and each higher wheel has one slot
+ * per full turn of the wheel below it. A timeout is placed in the lowest wheel that can hold
+ * its deadline, and is moved down ("cascaded") one wheel at a time as its deadline gets closer,
+ * so scheduling, cancelling and expiring a timeout all take constant amortized time regardless
+ * of how many timeouts are pending.
+ *
+ * Actions are run by a single daemon thread owned by the wheel, and should therefore be short.
+ */
+public class TimerWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /** A pending action in the wheel. Timeouts are kept in doubly-linked lists, one per slot,
+     * so they can be cancelled without searching.
+     */
+    public final class Timeout {
+
+        private final long deadlineTick;
+        private final Runnable action;
+        private Timeout prev, next;
+        private Timeout[] slotList;
+        private int slotIndex = -1;
+
+        private Timeout(long deadlineTick, Runnable action) {
+            this.deadlineTick = deadlineTick;
+            this.action = action;
+        }
+
+        /** Cancels this timeout. Its action will not be run, unless it is already running. Has
+         * no effect if the timeout was already run or cancelled.
+         */
+        public void cancel() {
+            synchronized (TimerWheel.this) {
+                unlink(this);
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[][] wheels = new Timeout[LEVELS][WHEEL_SIZE];
+    private final long startMillis;
+    private long currentTick;
+    private int pending;
+
+    /** Creates a new timing wheel and starts its thread.
+     *
+     * @param name       Name of the thread running the actions.
+     * @param tickMillis Duration of each tick, in milliseconds. Actions run at most one tick
+     *                   after their deadline.
+     */
+    public TimerWheel(String name, long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Schedules an action to run once the specified time is reached. Deadlines in the past
+     * run on the next tick.
+     *
+     * @param deadlineMillis Absolute time, in milliseconds since the epoch, at which the action
+     *                       should run.
+     * @param action         Action to be run.
+     * @return A handle that may be used to cancel the action.
+     */
+    public synchronized Timeout schedule(long deadlineMillis, Runnable action) {
+        long tick = (deadlineMillis - startMillis + tickMillis - 1) / tickMillis;
+        Timeout timeout = new Timeout(Math.max(tick, currentTick + 1), action);
+        insert(timeout);
+        pending++;
+        return timeout;
+    }
+
+    /** Returns the number of actions waiting to be run.
+     *
+     * @return Number of pending (not run and not cancelled) timeouts.
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1)))
+            level++;
+        // Deadlines beyond the top wheel are parked in its furthest slot and re-inserted when
+        // that slot is cascaded.
+        long slotTick = Math.min(timeout.deadlineTick,
+                currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1);
+        int index = (int) ((slotTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+
+        Timeout[] slots = wheels[level];
+        timeout.slotList = slots;
+        timeout.slotIndex = index;
+        timeout.prev = null;
+        timeout.next = slots[index];
+        if (slots[index] != null)
+            slots[index].prev = timeout;
+        slots[index] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slotList == null) return;
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            timeout.slotList[timeout.slotIndex] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.slotList = null;
+        timeout.prev = timeout.next = null;
+        pending--;
+    }
+
+    /** Advances the wheel by one tick, cascading higher wheels as needed, and returns the list
+     * of timeouts that are now due (linked through their next field).
+     */
+    private synchronized Timeout advance() {
+        currentTick++;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) break;
+            int index = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timeout timeout = wheels[level][index];
+            wheels[level][index] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+
+        int index = (int) (currentTick & WHEEL_MASK);
+        Timeout timeout = wheels[0][index];
+        wheels[0][index] = null;
+        Timeout due = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= currentTick) {
+                timeout.slotList = null;
+                timeout.prev = null;
+                timeout.next = due;
+                due = timeout;
+                pending--;
+            } else
+                insert(timeout);
+            timeout = next;
+        }
+        return due;
+    }
+
+    private void run() {
+        while (true) {
+            long nextTickMillis;
+            synchronized (this) {
+                nextTickMillis = startMillis + (currentTick + 1) * tickMillis;
+            }
+            long sleep = nextTickMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            for (Timeout timeout = advance(); timeout != null; ) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                try {
+                    timeout.action.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                timeout = next;
+            }
+        }
+    }
+}
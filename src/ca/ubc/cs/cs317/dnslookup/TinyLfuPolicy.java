@@ -0,0 +1,210 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/** Decides which queries (nodes) are evicted when the cache goes over its size limits, using
+ * the W-TinyLFU policy. New nodes enter a small LRU window. Nodes pushed out of the window
+ * become candidates for the main area, a segmented LRU split into a probation and a protected
+ * segment. When the cache is too big, the candidate is compared with the least recently used
+ * node of the probation segment, and the one that was used less frequently recently (according
+ * to a frequency sketch) is evicted. A burst of names that are looked up only once, such as
+ * a scan, therefore cannot push out names that are used all the time.
+ *
+ * Each node has a weight, composed of its number of records and their estimated size in bytes.
+ * Both totals are limited independently.
+ *
+ * This class is not thread-safe; it is meant to be used under the lock of its owner.
+ */
+class TinyLfuPolicy {
+
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private static class Entry {
+        int records;
+        long bytes;
+        Map<DNSNode, Entry> segment;
+    }
+
+    private final long maxRecords;
+    private final long maxBytes;
+    private final Consumer<DNSNode> evictionListener;
+    private final FrequencySketch sketch;
+
+    private final LinkedHashMap<DNSNode, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<DNSNode, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<DNSNode, Entry> protectedSegment = new LinkedHashMap<>();
+    private final Map<DNSNode, Entry> entries = new HashMap<>();
+
+    private DNSNode candidate;
+    private long windowRecords, windowBytes;
+    private long protectedRecords, protectedBytes;
+    private long totalRecords, totalBytes;
+
+    /** Creates a new policy.
+     *
+     * @param maxRecords       Maximum total number of records in the cache.
+     * @param maxBytes         Maximum total estimated size of the records in the cache.
+     * @param evictionListener Action called with each node that should be removed from the
+     *                         cache. The policy forgets about the node before calling it.
+     */
+    TinyLfuPolicy(long maxRecords, long maxBytes, Consumer<DNSNode> evictionListener) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.evictionListener = evictionListener;
+        this.sketch = new FrequencySketch(maxRecords);
+    }
+
+    long getRecordCount() {
+        return totalRecords;
+    }
+
+    long getByteCount() {
+        return totalBytes;
+    }
+
+    /** Records a lookup of a node, which increases its frequency and moves it towards the
+     * protected segment if it is cached.
+     *
+     * @param node Node that was looked up.
+     */
+    void onRead(DNSNode node) {
+        sketch.increment(node.hashCode());
+        Entry entry = entries.get(node);
+        if (entry == null) return;
+
+        if (entry.segment == probation) {
+            probation.remove(node);
+            protectedSegment.put(node, entry);
+            entry.segment = protectedSegment;
+            protectedRecords += entry.records;
+            protectedBytes += entry.bytes;
+            demoteProtected();
+        } else
+            touch(node, entry);
+    }
+
+    /** Records the current size of a node after its records changed. A node with no records
+     * is removed from the policy. Nodes are then evicted until the cache is within its limits.
+     *
+     * @param node    Node whose records changed.
+     * @param records Number of records now cached for the node.
+     * @param bytes   Estimated size of the records now cached for the node.
+     */
+    void onWrite(DNSNode node, int records, long bytes) {
+        Entry entry = entries.get(node);
+        if (records == 0) {
+            if (entry != null)
+                remove(node, entry);
+            return;
+        }
+
+        if (entry == null) {
+            sketch.increment(node.hashCode());
+            entry = new Entry();
+            entry.segment = window;
+            window.put(node, entry);
+            entries.put(node, entry);
+        } else
+            touch(node, entry);
+
+        resize(entry, records, bytes);
+        shrinkWindow();
+        evict();
+    }
+
+    private void touch(DNSNode node, Entry entry) {
+        entry.segment.remove(node);
+        entry.segment.put(node, entry);
+    }
+
+    private void resize(Entry entry, int records, long bytes) {
+        long deltaRecords = records - entry.records;
+        long deltaBytes = bytes - entry.bytes;
+        totalRecords += deltaRecords;
+        totalBytes += deltaBytes;
+        if (entry.segment == window) {
+            windowRecords += deltaRecords;
+            windowBytes += deltaBytes;
+        } else if (entry.segment == protectedSegment) {
+            protectedRecords += deltaRecords;
+            protectedBytes += deltaBytes;
+        }
+        entry.records = records;
+        entry.bytes = bytes;
+    }
+
+    private void remove(DNSNode node, Entry entry) {
+        resize(entry, 0, 0);
+        entry.segment.remove(node);
+        entries.remove(node);
+    }
+
+    /** Returns true if a segment holding the specified records and bytes is larger than the
+     * specified fraction of either limit.
+     */
+    private boolean exceeds(long records, long bytes, double fraction) {
+        return records > (long) (maxRecords * fraction) || bytes > (long) (maxBytes * fraction);
+    }
+
+    /** Moves the least recently used nodes of the window to the probation segment, where
+     * they become candidates for admission to the main area.
+     */
+    private void shrinkWindow() {
+        Iterator<Map.Entry<DNSNode, Entry>> it = window.entrySet().iterator();
+        while (exceeds(windowRecords, windowBytes, WINDOW_FRACTION) && it.hasNext()) {
+            Map.Entry<DNSNode, Entry> oldest = it.next();
+            it.remove();
+            windowRecords -= oldest.getValue().records;
+            windowBytes -= oldest.getValue().bytes;
+            oldest.getValue().segment = probation;
+            probation.put(oldest.getKey(), oldest.getValue());
+            candidate = oldest.getKey();
+        }
+    }
+
+    private void demoteProtected() {
+        Iterator<Map.Entry<DNSNode, Entry>> it = protectedSegment.entrySet().iterator();
+        while (exceeds(protectedRecords, protectedBytes, (1 - WINDOW_FRACTION) * PROTECTED_FRACTION) && it.hasNext()) {
+            Map.Entry<DNSNode, Entry> oldest = it.next();
+            it.remove();
+            protectedRecords -= oldest.getValue().records;
+            protectedBytes -= oldest.getValue().bytes;
+            oldest.getValue().segment = probation;
+            probation.put(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /** Evicts nodes until both limits are respected. The node most recently moved out of the
+     * window (the candidate) competes with the oldest node of the probation segment (the
+     * victim), and the least frequently used of the two is evicted. If the probation segment
+     * is empty, the oldest protected node, and then the oldest window node, is evicted.
+     */
+    private void evict() {
+        while (totalRecords > maxRecords || totalBytes > maxBytes) {
+            DNSNode evicted;
+            if (!probation.isEmpty()) {
+                DNSNode victim = probation.keySet().iterator().next();
+                Entry candidateEntry = candidate == null ? null : entries.get(candidate);
+                if (candidateEntry == null || candidateEntry.segment != probation || candidate.equals(victim))
+                    evicted = victim;
+                else if (sketch.frequency(candidate.hashCode()) > sketch.frequency(victim.hashCode()))
+                    evicted = victim;
+                else
+                    evicted = candidate;
+            } else if (!protectedSegment.isEmpty())
+                evicted = protectedSegment.keySet().iterator().next();
+            else if (!window.isEmpty())
+                evicted = window.keySet().iterator().next();
+            else
+                return;
+
+            remove(evicted, entries.get(evicted));
+            evictionListener.accept(evicted);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Sends DNS queries over UDP and matches the responses with the queries they answer, so any
+ * number of queries, from any number of threads, may be outstanding at the same time on a
+ * single socket.
+ *
+ * Queries are sent on a non-blocking datagram channel. The channel is opened without a protocol
+ * family, so where the system supports IPv6 a single dual-stack socket reaches both IPv4 and
+ * IPv6 servers; elsewhere queries to IPv6 servers fail to send. Each query waiting for a
+ * response is kept in an in-flight table, keyed by its ID, the address and port of the server
+ * and its question (name and type). A single daemon thread waits for responses with a selector and
+ * completes the query with the same key. Responses that do not match any query in flight,
+ * such as replies arriving after their query timed out or messages from unexpected sources,
+ * are discarded. Queries that are not answered within their timeout are completed with a
+ * SocketTimeoutException by a timing wheel.
+ *
+ * The timeout of each query depends on its server: it is the retransmission timeout computed
+ * from the round-trip times measured for the server (RFC 6298), or INITIAL_TIMEOUT for a server
+ * never heard from, doubled for every previous attempt of the same query (exponential backoff),
+ * and never longer than the maximum timeout of the transport. It is never shorter than
+ * MIN_TIMEOUT either, even for a server that usually answers within a few milliseconds, so that
+ * a burst of queries delaying its responses is not taken for a failure.
+ *
+ * Queries carry an EDNS0 OPT record advertising the UDP payload size of the transport, and the
+ * buffers of the shared DatagramBufferPool are made large enough to receive such responses. A
+ * server that rejects EDNS0 (with a FORMERR response) may be marked with disableEdns, after which
+ * it gets plain queries. Responses too long even for that size come back truncated, and are
+ * retried over TCP with the TcpTransport of this transport.
+ *
+ * Responses are delivered in buffers taken from the shared DatagramBufferPool, which the
+ * caller must release once the response has been parsed.
+ *
+ * The round-trip time of each response, and each timeout, is recorded in an RttTable, which
+ * callers may use to choose among several servers. Responses to retransmitted queries are not
+ * sampled: they have the same ID as the first attempt, so a late response to that attempt
+ * would otherwise be measured from the retransmission (Karn's algorithm).
+ */
+public class UdpTransport implements Closeable {
+
+    private static final long TIMEOUT_TICK_MILLIS = 10;
+
+    public static final long INITIAL_TIMEOUT = 1000;
+    public static final long MIN_TIMEOUT = 250;
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+    public static final int DEFAULT_SERVER_PORT = 53;
+
+    /** Key of the in-flight table. Names are compared in canonical form, without regard to case. */
+    private static final class InFlightKey {
+
+        private final int id;
+        private final InetAddress server;
+        private final int port;
+        private final DomainName name;
+        private final int type;
+
+        InFlightKey(int id, InetAddress server, int port, DomainName name, int type) {
+            this.id = id;
+            this.server = server;
+            this.port = port;
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof InFlightKey)) return false;
+            InFlightKey key = (InFlightKey) o;
+            return id == key.id && port == key.port && type == key.type
+                    && server.equals(key.server) && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, server, port, name, type);
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final long timeoutMillis;
+    private final int udpPayloadSize;
+    private final TcpTransport tcpTransport;
+    private final Set<InetAddress> noEdns = ConcurrentHashMap.newKeySet();
+    private final DatagramBufferPool bufferPool = DatagramBufferPool.getInstance();
+    private final TimerWheel timeouts = new TimerWheel("dns-transport-timeouts", TIMEOUT_TICK_MILLIS);
+    private final RttTable rttTable = new RttTable();
+    private final ConcurrentMap<InFlightKey, CompletableFuture<DatagramBufferPool.Buffer>> inFlight =
+            new ConcurrentHashMap<>();
+
+    private volatile int serverPort = DEFAULT_SERVER_PORT;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /** Opens a channel bound to an ephemeral port and starts the thread receiving responses,
+     * advertising the default UDP payload size.
+     *
+     * @param timeoutMillis Maximum time to wait for the response to each query, in milliseconds.
+     * @throws IOException if the channel could not be opened.
+     */
+    public UdpTransport(long timeoutMillis) throws IOException {
+        this(timeoutMillis, DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    /** Opens a channel bound to an ephemeral port and starts the thread receiving responses.
+     *
+     * @param timeoutMillis  Maximum time to wait for the response to each query, in milliseconds.
+     * @param udpPayloadSize Largest UDP response accepted, advertised to servers with EDNS0, or
+     *                       0 to send plain queries (responses are then limited to 512 bytes).
+     * @throws IOException if the channel could not be opened.
+     */
+    public UdpTransport(long timeoutMillis, int udpPayloadSize) throws IOException {
+        this.timeoutMillis = Math.max(timeoutMillis, MIN_TIMEOUT);
+        this.udpPayloadSize = udpPayloadSize <= 0 ? 0 : Math.max(udpPayloadSize, QueryEncoder.MAX_UDP_PAYLOAD);
+        this.tcpTransport = new TcpTransport(this.timeoutMillis);
+        bufferPool.ensureBufferSize(Math.max(this.udpPayloadSize, QueryEncoder.MAX_UDP_PAYLOAD));
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        // Room for the responses to a burst of queries, which would otherwise be dropped and retried
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 22);
+        channel.bind(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        Thread thread = new Thread(this::receiveLoop, "dns-transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Sends a query and returns a future completed with its response. The future completes
+     * exceptionally with a SocketTimeoutException if no response arrives in time, or with an
+     * IOException if the query could not be sent.
+     *
+     * @param id     Query ID.
+     * @param flags  Second 16-bit word of the header.
+     * @param node   Host name and record type queried.
+     * @param server Address of the server.
+     * @param port    Port of the server.
+     * @param attempt Number of times the same query was already sent without a response, used
+     *                to back off its timeout; the RTT of a retransmission is not sampled.
+     * @return A future completed with a buffer holding the response, positioned at its start
+     *         and limited to its length. The buffer must be given back to the pool once used.
+     */
+    public CompletableFuture<DatagramBufferPool.Buffer> query(int id, int flags, DNSNode node,
+                                                              InetAddress server, int port, int attempt) {
+        CompletableFuture<DatagramBufferPool.Buffer> response = new CompletableFuture<>();
+        InFlightKey key = new InFlightKey(id & 0xFFFF, server, port, node.getName(), node.getType().getCode());
+        if (inFlight.putIfAbsent(key, response) != null) {
+            response.completeExceptionally(new IOException("Query " + id + " for " + node + " already in flight"));
+            return response;
+        }
+
+        DatagramBufferPool.Buffer request = bufferPool.acquire();
+        long sentAt;
+        try {
+            ByteBuffer bytes = request.getByteBuffer();
+            QueryEncoder.encode(bytes, id, flags, node, noEdns.contains(server) ? 0 : udpPayloadSize);
+            sentAt = System.nanoTime();
+            if (channel.send(bytes, new InetSocketAddress(server, port)) == 0)
+                throw new IOException("Send buffer full");
+            sent.increment();
+        } catch (IOException | RuntimeException e) {
+            inFlight.remove(key, response);
+            response.completeExceptionally(e);
+            return response;
+        } finally {
+            bufferPool.release(request);
+        }
+
+        long waitMillis = getTimeout(server, attempt);
+        TimerWheel.Timeout timeout = timeouts.schedule(System.currentTimeMillis() + waitMillis, () -> {
+            if (inFlight.remove(key, response)) {
+                timedOut.increment();
+                rttTable.recordTimeout(server, waitMillis);
+                response.completeExceptionally(new SocketTimeoutException("No response from " + server.getHostAddress()));
+            }
+        });
+        response.whenComplete((buffer, error) -> {
+            timeout.cancel();
+            // The response to a retransmission may answer an earlier attempt (Karn's rule)
+            if (buffer != null && attempt == 0)
+                rttTable.recordResponse(server, (System.nanoTime() - sentAt) / 1e6);
+        });
+        return response;
+    }
+
+    private void receiveLoop() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                receiveAll();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Transport closed
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        while (true) {
+            DatagramBufferPool.Buffer buffer = bufferPool.acquire();
+            ByteBuffer bytes = buffer.getByteBuffer();
+            bytes.clear();
+            InetSocketAddress source = (InetSocketAddress) channel.receive(bytes);
+            if (source == null) {
+                bufferPool.release(buffer);
+                return;
+            }
+            bytes.flip();
+            received.increment();
+            if (!deliver(buffer, source)) {
+                discarded.increment();
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /** Completes the query answered by a response, if it is still in flight. */
+    private boolean deliver(DatagramBufferPool.Buffer buffer, InetSocketAddress source) {
+        try {
+            DNSResponseParser parser = new DNSResponseParser(buffer.getByteBuffer());
+            if (!parser.isResponse() || parser.getQuestionCount() == 0)
+                return false;
+            parser.parseQuestion();
+            InFlightKey key = new InFlightKey(parser.getID(), source.getAddress(), source.getPort(),
+                    parser.getQuestionName(), parser.getQuestionType());
+            CompletableFuture<DatagramBufferPool.Buffer> response = inFlight.remove(key);
+            return response != null && response.complete(buffer);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Returns the time to wait for a response to a query sent to a server, in milliseconds.
+     *
+     * @param server  Address of the server.
+     * @param attempt Number of times the same query was already sent without a response.
+     * @return The retransmission timeout of the server, doubled for each previous attempt.
+     */
+    public long getTimeout(InetAddress server, int attempt) {
+        double rto = rttTable.getRetransmissionTimeout(server);
+        long base = rto < 0 ? Math.min(INITIAL_TIMEOUT, timeoutMillis)
+                : Math.min(Math.max(MIN_TIMEOUT, (long) Math.ceil(rto)), timeoutMillis);
+        return Math.min(base << Math.min(attempt, 20), timeoutMillis);
+    }
+
+    /** Sets the port servers are queried on, over UDP and TCP, for example to query servers
+     * running without privileges on a test machine.
+     */
+    public void setServerPort(int port) {
+        this.serverPort = port;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /** Returns the UDP payload size advertised in queries, or 0 if EDNS0 is not used. */
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /** Returns true if queries sent to a server carry an EDNS0 OPT record. */
+    public boolean isEdnsEnabled(InetAddress server) {
+        return udpPayloadSize > 0 && !noEdns.contains(server);
+    }
+
+    /** Sends plain queries, without an EDNS0 OPT record, to a server that rejected them. */
+    public void disableEdns(InetAddress server) {
+        noEdns.add(server);
+    }
+
+    /** Returns the transport used to retry queries whose response was truncated. */
+    public TcpTransport getTcpTransport() {
+        return tcpTransport;
+    }
+
+    /** Returns the round-trip times measured for each server. */
+    public RttTable getRttTable() {
+        return rttTable;
+    }
+
+    /** Returns the number of queries waiting for a response. */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /** Returns the number of responses that did not match any query in flight. */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Index of the zone cuts (delegations) known to the cache: the names that have cached NS
+ * records. Zones are keyed on their canonical DomainName, so the zone cuts enclosing a name are
+ * all found in a single walk up its parents, one lookup per label, without splitting the name
+ * or building the names of its parent domains: they already exist, and their hash codes are
+ * computed once.
+ *
+ * Names are compared without regard to case. Each entry remembers the node under which the NS
+ * records of its zone are cached, which the cache looks them up with.
+ *
+ * The index is safe for concurrent use.
+ */
+class ZoneCutIndex {
+
+    private final ConcurrentMap<DomainName, DNSNode> zones = new ConcurrentHashMap<>();
+
+    /** Records that NS records are cached for a zone.
+     *
+     * @param nameServers Node (zone name and NS type) of the cached NS records.
+     */
+    void add(DNSNode nameServers) {
+        zones.put(nameServers.getName(), nameServers);
+    }
+
+    /** Records that the NS records of a zone are no longer cached.
+     *
+     * @param nameServers Node (zone name and NS type) of the NS records removed.
+     */
+    void remove(DNSNode nameServers) {
+        zones.remove(nameServers.getName(), nameServers);
+    }
+
+    /** Returns the zone cuts enclosing a name, including the name itself if it is a zone, from
+     * the deepest to the root.
+     *
+     * @param name Fully qualified name.
+     * @return Nodes of the NS records of each enclosing zone, closest to the name first.
+     */
+    List<DNSNode> findEnclosingZones(DomainName name) {
+        List<DNSNode> found = new ArrayList<>();
+        for (; name != null; name = name.getParent()) {
+            DNSNode nameServers = zones.get(name);
+            if (nameServers != null)
+                found.add(nameServers);
+        }
+        return found;
+    }
+}